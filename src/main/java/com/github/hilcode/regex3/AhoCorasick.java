@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import java.util.SortedSet;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+
+// An Aho-Corasick automaton over the UTF-16 code units of a set of literals. The trie is kept sparse, with the children
+// of each state sorted by class, and failure links; when every transition fits in MAX_TABLE_SIZE, they are also
+// computed ahead of time into a dense table.
+public final class AhoCorasick
+	implements
+		Prefilter
+{
+	public static final int MAX_TABLE_SIZE = 1 << 22;
+
+	private static final int ASCII_SIZE = 0x80;
+
+	public static final AhoCorasick of(final ImmutableList<String> literals)
+	{
+		Preconditions.checkArgument(!literals.isEmpty(), "No literals.");
+		final SortedSet<Character> alphabet = Sets.newTreeSet();
+		for (final String literal : literals)
+		{
+			Preconditions.checkArgument(!literal.isEmpty(), "Empty literal.");
+			for (int i = 0; i < literal.length(); i++)
+			{
+				alphabet.add(Character.valueOf(literal.charAt(i)));
+			}
+		}
+		final char[] chars = new char[alphabet.size()];
+		int i = 0;
+		for (final Character ch : alphabet)
+		{
+			chars[i++] = ch.charValue();
+		}
+		return new AhoCorasick(literals, chars);
+	}
+
+	public final ImmutableList<String> literals;
+
+	// Class 0 is every code unit that does not occur in any literal.
+	private final char[] chars;
+
+	private final int[] asciiClasses;
+
+	private final int classCount;
+
+	// The children of state s are childStates[childStart[s]] to childStates[childStart[s + 1] - 1].
+	private final int[] childStart;
+
+	private final int[] childClasses;
+
+	private final int[] childStates;
+
+	private final int[] failures;
+
+	private final int[] rootTransitions;
+
+	private final boolean dense;
+
+	// Indexed by state * classCount + class; empty unless dense.
+	private final int[] transitions;
+
+	private final int[] depths;
+
+	private final boolean[] terminal;
+
+	private final boolean[] output;
+
+	private AhoCorasick(final ImmutableList<String> literals, final char[] chars)
+	{
+		this.literals = literals;
+		this.chars = chars;
+		this.classCount = chars.length + 1;
+		this.asciiClasses = new int[ASCII_SIZE];
+		for (int ch = 0; ch < ASCII_SIZE; ch++)
+		{
+			this.asciiClasses[ch] = search((char) ch);
+		}
+		// In sorted order, the literals share their common prefix with the previous one, and every state gets its
+		// children in the order of their classes.
+		int maxStates = 1;
+		int maxLength = 0;
+		for (final String literal : literals)
+		{
+			maxStates += literal.length();
+			maxLength = Math.max(maxLength, literal.length());
+		}
+		final int[] parents = new int[maxStates];
+		final int[] classes = new int[maxStates];
+		final int[] depths = new int[maxStates];
+		final boolean[] terminal = new boolean[maxStates];
+		final int[] path = new int[maxLength + 1];
+		int stateCount = 1;
+		String previous = "";
+		for (final String literal : Ordering.natural().sortedCopy(literals))
+		{
+			int depth = 0;
+			while (depth < previous.length() && depth < literal.length() && previous.charAt(depth) == literal.charAt(depth))
+			{
+				depth++;
+			}
+			for (; depth < literal.length(); depth++)
+			{
+				parents[stateCount] = path[depth];
+				classes[stateCount] = classOf(literal.charAt(depth));
+				depths[stateCount] = depth + 1;
+				path[depth + 1] = stateCount++;
+			}
+			terminal[path[literal.length()]] = true;
+			previous = literal;
+		}
+		this.childStart = new int[stateCount + 1];
+		for (int state = 1; state < stateCount; state++)
+		{
+			this.childStart[parents[state] + 1]++;
+		}
+		for (int state = 0; state < stateCount; state++)
+		{
+			this.childStart[state + 1] += this.childStart[state];
+		}
+		this.childClasses = new int[stateCount - 1];
+		this.childStates = new int[stateCount - 1];
+		final int[] next = Arrays.copyOf(this.childStart, stateCount);
+		for (int state = 1; state < stateCount; state++)
+		{
+			final int index = next[parents[state]]++;
+			this.childClasses[index] = classes[state];
+			this.childStates[index] = state;
+		}
+		this.rootTransitions = new int[this.classCount];
+		for (int index = this.childStart[0]; index < this.childStart[1]; index++)
+		{
+			this.rootTransitions[this.childClasses[index]] = this.childStates[index];
+		}
+		this.dense = (long) stateCount * this.classCount <= MAX_TABLE_SIZE;
+		this.transitions = this.dense ? new int[stateCount * this.classCount] : new int[0];
+		this.failures = new int[stateCount];
+		this.depths = Arrays.copyOf(depths, stateCount);
+		this.terminal = Arrays.copyOf(terminal, stateCount);
+		this.output = Arrays.copyOf(terminal, stateCount);
+		// States are visited by depth, so the failure state of each one has been visited before it.
+		final int[] queue = new int[stateCount];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = 0;
+		while (head < tail)
+		{
+			final int state = queue[head++];
+			final int failure = this.failures[state];
+			this.output[state] |= this.output[failure];
+			if (this.dense)
+			{
+				System.arraycopy(
+						state == 0 ? this.rootTransitions : this.transitions,
+						failure * this.classCount,
+						this.transitions,
+						state * this.classCount,
+						this.classCount);
+			}
+			for (int index = this.childStart[state]; index < this.childStart[state + 1]; index++)
+			{
+				final int child = this.childStates[index];
+				this.failures[child] = state == 0 ? 0 : next(failure, this.childClasses[index]);
+				if (this.dense)
+				{
+					this.transitions[state * this.classCount + this.childClasses[index]] = child;
+				}
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	public int getStateCount()
+	{
+		return this.depths.length;
+	}
+
+	public boolean isDense()
+	{
+		return this.dense;
+	}
+
+	// Every literal that starts before the returned index would still be on the trie path of the current state.
+	@Override
+	public int indexOf(final CharSequence text, final int fromIndex)
+	{
+		int state = 0;
+		for (int index = Math.max(fromIndex, 0); index < text.length(); index++)
+		{
+			state = next(state, classOf(text.charAt(index)));
+			if (this.output[state])
+			{
+				return index + 1 - this.depths[state];
+			}
+		}
+		return -1;
+	}
+
+	// Returns the length of the longest literal starting at index, or -1.
+	public int longestMatchAt(final CharSequence text, final int index)
+	{
+		int state = 0;
+		int longestMatchLength = -1;
+		for (int i = index; i < text.length(); i++)
+		{
+			state = child(state, classOf(text.charAt(i)));
+			if (state == -1)
+			{
+				break;
+			}
+			if (this.terminal[state])
+			{
+				longestMatchLength = this.depths[state];
+			}
+		}
+		return longestMatchLength;
+	}
+
+	private int next(final int state, final int classId)
+	{
+		if (this.dense)
+		{
+			return this.transitions[state * this.classCount + classId];
+		}
+		for (int current = state; current != 0; current = this.failures[current])
+		{
+			final int child = child(current, classId);
+			if (child != -1)
+			{
+				return child;
+			}
+		}
+		return this.rootTransitions[classId];
+	}
+
+	// Returns the child of the state in the trie, or -1.
+	private int child(final int state, final int classId)
+	{
+		int low = this.childStart[state];
+		int high = this.childStart[state + 1] - 1;
+		while (low <= high)
+		{
+			final int middle = low + high >>> 1;
+			final int middleClass = this.childClasses[middle];
+			if (middleClass < classId)
+			{
+				low = middle + 1;
+			}
+			else if (middleClass > classId)
+			{
+				high = middle - 1;
+			}
+			else
+			{
+				return this.childStates[middle];
+			}
+		}
+		return -1;
+	}
+
+	private int classOf(final char ch)
+	{
+		return ch < ASCII_SIZE ? this.asciiClasses[ch] : search(ch);
+	}
+
+	private int search(final char ch)
+	{
+		final int index = Arrays.binarySearch(this.chars, ch);
+		return index >= 0 ? index + 1 : 0;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import com.google.common.collect.ImmutableList;
+
+// Explores the program depth first in priority order, remembering which (instruction, position) pairs it has tried
+// so that each is tried at most once. That keeps the running time linear in program size times input length, and
+// for short inputs it is much cheaper than maintaining the thread lists of the virtual machine.
+public final class Backtracker
+{
+	public static final int DEFAULT_MAX_MEMORY = 32 * 1024;
+
+	// Returns whether the visited bitmap for the given number of program counters, see Counters, and input length fits
+	// in maxMemory bytes.
+	public static final boolean fits(final int stateCount, final int length, final int maxMemory)
+	{
+		return (long) stateCount * (length + 1) <= 8L * maxMemory;
+	}
+
+	private final Counters counters;
+
+	private final int slotCount;
+
+	private final int[] slots;
+
+	private long[] visited;
+
+	// Pairs of (program counter, position) to explore, or (-1 - slot, value) to restore a slot on the way back.
+	private int[] stack;
+
+	public Backtracker(final ImmutableList<Instruction> program)
+	{
+		this.counters = new Counters(program);
+		int slotCount = 2;
+		for (final Instruction instruction : program)
+		{
+			if (instruction.type == Instruction.Type.SAVE)
+			{
+				final Instruction.Save save = instruction.cast();
+				slotCount = Math.max(slotCount, save.slot + 1);
+			}
+		}
+		this.slotCount = slotCount;
+		this.slots = new int[slotCount];
+		this.visited = new long[0];
+		this.stack = new int[64];
+	}
+
+	// Returns the capture slots of the longest match of text[offset, end) starting at offset, or null.
+	public int[] capture(final CharSequence text, final int offset, final int end)
+	{
+		final int width = end - offset + 1;
+		final int words = (int) (((long) this.counters.size() * width + 63) >>> 6);
+		if (this.visited.length < words)
+		{
+			this.visited = new long[words];
+		}
+		else
+		{
+			Arrays.fill(this.visited, 0, words, 0L);
+		}
+		Arrays.fill(this.slots, -1);
+		int[] match = null;
+		int stackSize = 0;
+		this.stack[stackSize++] = 0;
+		this.stack[stackSize++] = offset;
+		while (stackSize > 0)
+		{
+			int position = this.stack[--stackSize];
+			int pc = this.stack[--stackSize];
+			if (pc < 0)
+			{
+				this.slots[-1 - pc] = position;
+				continue;
+			}
+			while (true)
+			{
+				final long bit = (long) pc * width + position - offset;
+				final int word = (int) (bit >>> 6);
+				if ((this.visited[word] & 1L << bit) != 0)
+				{
+					break;
+				}
+				this.visited[word] |= 1L << bit;
+				final Instruction instruction = this.counters.instruction(pc);
+				if (instruction.type == Instruction.Type.FORK
+						|| instruction.type == Instruction.Type.SAVE
+						|| instruction.type == Instruction.Type.REPEAT)
+				{
+					if (stackSize + 2 > this.stack.length)
+					{
+						this.stack = Arrays.copyOf(this.stack, 2 * this.stack.length);
+					}
+				}
+				int nextPc = -1;
+				switch (instruction.type)
+				{
+					case SINGLE:
+					{
+						final Instruction.Single single = instruction.cast();
+						if (position < end && Character.codePointAt(text, position) == single.codePoint.value)
+						{
+							position += Character.charCount(single.codePoint.value);
+							nextPc = pc + 1;
+						}
+						break;
+					}
+					case RANGE:
+					{
+						final Instruction.Range range = instruction.cast();
+						if (position < end)
+						{
+							final int codePoint = Character.codePointAt(text, position);
+							if (range.codePoints.contains(codePoint))
+							{
+								position += Character.charCount(codePoint);
+								nextPc = pc + 1;
+							}
+						}
+						break;
+					}
+					case REPEAT:
+					{
+						final Instruction.Repeat repeat = instruction.cast();
+						final int count = this.counters.count(pc);
+						final boolean mayStop = count >= repeat.min;
+						if (count < repeat.max && position < end)
+						{
+							final int codePoint = Character.codePointAt(text, position);
+							if (repeat.matches(codePoint))
+							{
+								if (mayStop)
+								{
+									this.stack[stackSize++] = this.counters.exit(pc);
+									this.stack[stackSize++] = position;
+								}
+								position += Character.charCount(codePoint);
+								nextPc = this.counters.next(pc);
+								break;
+							}
+						}
+						if (mayStop)
+						{
+							nextPc = this.counters.exit(pc);
+						}
+						break;
+					}
+					case FORK:
+					{
+						final Instruction.Fork fork = instruction.cast();
+						this.stack[stackSize++] = pc + fork.offset;
+						this.stack[stackSize++] = position;
+						nextPc = pc + 1;
+						break;
+					}
+					case JUMP:
+					{
+						final Instruction.Jump jump = instruction.cast();
+						nextPc = pc + jump.offset;
+						break;
+					}
+					case SAVE:
+					{
+						final Instruction.Save save = instruction.cast();
+						this.stack[stackSize++] = -1 - save.slot;
+						this.stack[stackSize++] = this.slots[save.slot];
+						this.slots[save.slot] = position;
+						nextPc = pc + 1;
+						break;
+					}
+					case SUCCESS:
+					default:
+					{
+						// Threads are explored in priority order, so the first to reach a length is the one that counts.
+						if (match == null || match[1] < position)
+						{
+							if (match == null)
+							{
+								match = new int[this.slotCount];
+							}
+							System.arraycopy(this.slots, 0, match, 0, this.slotCount);
+							match[0] = offset;
+							match[1] = position;
+							if (position == end)
+							{
+								return match;
+							}
+						}
+						break;
+					}
+				}
+				if (nextPc == -1)
+				{
+					break;
+				}
+				pc = nextPc;
+			}
+		}
+		return match;
+	}
+}
@@ -0,0 +1,596 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// Compiles a DFA into a class whose longestMatch method is straight-line code: every state is a block of bytecode
+// that compares the next code point against the boundaries of its transitions and jumps to the block of the next
+// state. Each class gets a class loader of its own, so it is unloaded together with the executor.
+public final class BytecodeCompiler
+{
+	// HotSpot does not compile methods with more bytecode than this, see -XX:-DontCompileHugeMethods.
+	public static final int MAX_CODE_SIZE = 8000;
+
+	private static final int CLASS_FILE_VERSION = 49;
+
+	private static final String CLASS_NAME = "com/github/hilcode/regex3/CompiledDfa";
+
+	private static final String EXECUTOR = "com/github/hilcode/regex3/Executor";
+
+	private static final String CODE_POINT_SOURCE = "com/github/hilcode/regex3/Regex$CodePointSource";
+
+	private static final int ACC_PUBLIC = 0x0001;
+
+	private static final int ACC_FINAL = 0x0010;
+
+	private static final int ACC_SUPER = 0x0020;
+
+	private static final int ICONST_M1 = 0x02;
+
+	private static final int ICONST_0 = 0x03;
+
+	private static final int BIPUSH = 0x10;
+
+	private static final int SIPUSH = 0x11;
+
+	private static final int LDC_W = 0x13;
+
+	private static final int ILOAD = 0x15;
+
+	private static final int ILOAD_2 = 0x1C;
+
+	private static final int ILOAD_3 = 0x1D;
+
+	private static final int ALOAD_0 = 0x2A;
+
+	private static final int ALOAD_1 = 0x2B;
+
+	private static final int ISTORE = 0x36;
+
+	private static final int ISTORE_2 = 0x3D;
+
+	private static final int ISTORE_3 = 0x3E;
+
+	private static final int IINC = 0x84;
+
+	private static final int IFLT = 0x9B;
+
+	private static final int IF_ICMPLT = 0xA1;
+
+	private static final int GOTO = 0xA7;
+
+	private static final int IRETURN = 0xAC;
+
+	private static final int ARETURN = 0xB0;
+
+	private static final int RETURN = 0xB1;
+
+	private static final int INVOKESPECIAL = 0xB7;
+
+	private static final int INVOKEINTERFACE = 0xB9;
+
+	private static final int LENGTH = 2;
+
+	private static final int LONGEST_MATCH_LENGTH = 3;
+
+	private static final int CODE_POINT = 4;
+
+	// Absent when the code for the DFA would be too large for HotSpot to compile.
+	public static final Optional<Executor> compile(final Dfa dfa)
+	{
+		final ConstantPool constants = new ConstantPool();
+		final Optional<byte[]> longestMatch = compileLongestMatch(dfa, constants);
+		if (!longestMatch.isPresent())
+		{
+			return Optional.absent();
+		}
+		final byte[] classFile;
+		try
+		{
+			classFile = writeClass(constants, longestMatch.get());
+		}
+		catch (final IOException e)
+		{
+			throw new IllegalStateException("Unable to write class file.", e);
+		}
+		final Loader loader = new Loader(BytecodeCompiler.class.getClassLoader());
+		try
+		{
+			return Optional.of((Executor) loader.define(classFile).getConstructor().newInstance());
+		}
+		catch (final ReflectiveOperationException e)
+		{
+			throw new IllegalStateException("Unable to load compiled DFA.", e);
+		}
+	}
+
+	private static final Optional<byte[]> compileLongestMatch(final Dfa dfa, final ConstantPool constants)
+	{
+		final int stateCount = dfa.getStateCount();
+		final int nextCodePoint = constants.interfaceMethod(CODE_POINT_SOURCE, "nextCodePoint", "()I");
+		final Code code = new Code(constants);
+		final int done = code.newLabel();
+		final int[] stateLabels = new int[stateCount];
+		for (int state = 0; state < stateCount; state++)
+		{
+			stateLabels[state] = code.newLabel();
+		}
+		code.op(ICONST_0);
+		code.op(ISTORE_2);
+		code.op(ICONST_M1);
+		code.op(ISTORE_3);
+		for (int state = 0; state < stateCount; state++)
+		{
+			code.mark(stateLabels[state]);
+			if (dfa.isAccepting(state))
+			{
+				code.op(ILOAD_2);
+				code.op(ISTORE_3);
+			}
+			if (dfa.isTerminal(state))
+			{
+				code.jump(GOTO, done);
+				continue;
+			}
+			code.op(ALOAD_1);
+			code.op(INVOKEINTERFACE);
+			code.u2(nextCodePoint);
+			code.u1(1);
+			code.u1(0);
+			code.op(ISTORE);
+			code.u1(CODE_POINT);
+			code.op(ILOAD);
+			code.u1(CODE_POINT);
+			code.jump(IFLT, done);
+			// Lengths are in UTF-16 code units.
+			final int bmp = code.newLabel();
+			code.iinc(LENGTH, 1);
+			code.op(ILOAD);
+			code.u1(CODE_POINT);
+			code.pushInt(Character.MIN_SUPPLEMENTARY_CODE_POINT);
+			code.jump(IF_ICMPLT, bmp);
+			code.iinc(LENGTH, 1);
+			code.mark(bmp);
+			final List<int[]> segments = segments(dfa, state);
+			final int[] targets = new int[segments.size()];
+			for (int i = 0; i < targets.length; i++)
+			{
+				final int nextState = segments.get(i)[1];
+				targets[i] = dfa.isTerminal(nextState) && !dfa.isAccepting(nextState) ? done : stateLabels[nextState];
+			}
+			emitSearch(code, segments, targets, 0, segments.size());
+			if (code.size() > MAX_CODE_SIZE)
+			{
+				return Optional.absent();
+			}
+		}
+		code.mark(done);
+		code.op(ILOAD_3);
+		code.op(IRETURN);
+		if (code.size() > MAX_CODE_SIZE)
+		{
+			return Optional.absent();
+		}
+		return Optional.of(code.toByteArray());
+	}
+
+	// The transitions of a state as (lower bound, next state) pairs, merging neighbouring classes with the same target.
+	private static final List<int[]> segments(final Dfa dfa, final int state)
+	{
+		final CodePointClasses classes = dfa.getClasses();
+		final List<int[]> segments = Lists.newArrayList();
+		for (int classId = 0; classId < classes.size(); classId++)
+		{
+			final int nextState = dfa.transition(state, classId);
+			if (segments.isEmpty() || segments.get(segments.size() - 1)[1] != nextState)
+			{
+				segments.add(new int[] { classes.representative(classId), nextState });
+			}
+		}
+		return segments;
+	}
+
+	// A binary search over the lower bounds of segments [from, to).
+	private static final void emitSearch(
+			final Code code,
+			final List<int[]> segments,
+			final int[] targets,
+			final int from,
+			final int to)
+	{
+		if (to - from == 1)
+		{
+			code.jump(GOTO, targets[from]);
+			return;
+		}
+		final int middle = (from + to) >>> 1;
+		final int lower = code.newLabel();
+		code.op(ILOAD);
+		code.u1(CODE_POINT);
+		code.pushInt(segments.get(middle)[0]);
+		code.jump(IF_ICMPLT, lower);
+		emitSearch(code, segments, targets, middle, to);
+		code.mark(lower);
+		emitSearch(code, segments, targets, from, middle);
+	}
+
+	private static final byte[] writeClass(final ConstantPool constants, final byte[] longestMatch) throws IOException
+	{
+		final int thisClass = constants.classRef(CLASS_NAME);
+		final int superClass = constants.classRef("java/lang/Object");
+		final int executor = constants.classRef(EXECUTOR);
+		final int objectInit = constants.method("java/lang/Object", "<init>", "()V");
+		final int name = constants.string("bytecode");
+		final int codeAttribute = constants.utf8("Code");
+		final Code init = new Code(constants);
+		init.op(ALOAD_0);
+		init.op(INVOKESPECIAL);
+		init.u2(objectInit);
+		init.op(RETURN);
+		final Code getName = new Code(constants);
+		getName.op(LDC_W);
+		getName.u2(name);
+		getName.op(ARETURN);
+		final int[] methodNames = {
+				constants.utf8("<init>"),
+				constants.utf8("getName"),
+				constants.utf8("longestMatch") };
+		final int[] methodDescriptors = {
+				constants.utf8("()V"),
+				constants.utf8("()Ljava/lang/String;"),
+				constants.utf8("(L" + CODE_POINT_SOURCE + ";)I") };
+		final byte[][] methodCode = { init.toByteArray(), getName.toByteArray(), longestMatch };
+		final int[] maxStacks = { 1, 1, 2 };
+		final int[] maxLocals = { 1, 1, CODE_POINT + 1 };
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(CLASS_FILE_VERSION);
+		constants.write(out);
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(executor);
+		out.writeShort(0);
+		out.writeShort(methodNames.length);
+		for (int i = 0; i < methodNames.length; i++)
+		{
+			out.writeShort(ACC_PUBLIC);
+			out.writeShort(methodNames[i]);
+			out.writeShort(methodDescriptors[i]);
+			out.writeShort(1);
+			out.writeShort(codeAttribute);
+			out.writeInt(12 + methodCode[i].length);
+			out.writeShort(maxStacks[i]);
+			out.writeShort(maxLocals[i]);
+			out.writeInt(methodCode[i].length);
+			out.write(methodCode[i]);
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+		out.writeShort(0);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static final class Loader
+		extends
+			ClassLoader
+	{
+		public Loader(final ClassLoader parent)
+		{
+			super(parent);
+		}
+
+		public Class<?> define(final byte[] classFile)
+		{
+			return defineClass(null, classFile, 0, classFile.length);
+		}
+	}
+
+	private static final class ConstantPool
+	{
+		private static final int CONSTANT_UTF8 = 1;
+
+		private static final int CONSTANT_INTEGER = 3;
+
+		private static final int CONSTANT_CLASS = 7;
+
+		private static final int CONSTANT_STRING = 8;
+
+		private static final int CONSTANT_METHOD_REF = 10;
+
+		private static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+
+		private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private final DataOutputStream out = new DataOutputStream(this.bytes);
+
+		private final Map<String, Integer> indices = Maps.newHashMap();
+
+		private int size = 1;
+
+		public int utf8(final String value)
+		{
+			final String key = "utf8:" + value;
+			if (!this.indices.containsKey(key))
+			{
+				write(CONSTANT_UTF8, value);
+			}
+			return index(key);
+		}
+
+		public int integer(final int value)
+		{
+			final String key = "int:" + value;
+			if (!this.indices.containsKey(key))
+			{
+				write(CONSTANT_INTEGER, value);
+			}
+			return index(key);
+		}
+
+		public int classRef(final String name)
+		{
+			final String key = "class:" + name;
+			if (!this.indices.containsKey(key))
+			{
+				write(CONSTANT_CLASS, utf8(name));
+			}
+			return index(key);
+		}
+
+		public int string(final String value)
+		{
+			final String key = "string:" + value;
+			if (!this.indices.containsKey(key))
+			{
+				write(CONSTANT_STRING, utf8(value));
+			}
+			return index(key);
+		}
+
+		public int method(final String owner, final String name, final String descriptor)
+		{
+			return memberRef(CONSTANT_METHOD_REF, owner, name, descriptor);
+		}
+
+		public int interfaceMethod(final String owner, final String name, final String descriptor)
+		{
+			return memberRef(CONSTANT_INTERFACE_METHOD_REF, owner, name, descriptor);
+		}
+
+		private int memberRef(final int tag, final String owner, final String name, final String descriptor)
+		{
+			final String key = tag + ":" + owner + "." + name + descriptor;
+			if (!this.indices.containsKey(key))
+			{
+				final int ownerIndex = classRef(owner);
+				final String nameAndTypeKey = "nameAndType:" + name + descriptor;
+				if (!this.indices.containsKey(nameAndTypeKey))
+				{
+					write(CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+					this.indices.put(nameAndTypeKey, Integer.valueOf(this.size - 1));
+				}
+				write(tag, ownerIndex, this.indices.get(nameAndTypeKey).intValue());
+			}
+			return index(key);
+		}
+
+		private int index(final String key)
+		{
+			if (!this.indices.containsKey(key))
+			{
+				this.indices.put(key, Integer.valueOf(this.size - 1));
+			}
+			return this.indices.get(key).intValue();
+		}
+
+		private void write(final int tag, final String value)
+		{
+			try
+			{
+				this.out.writeByte(tag);
+				this.out.writeUTF(value);
+			}
+			catch (final IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			this.size++;
+		}
+
+		private void write(final int tag, final int value)
+		{
+			try
+			{
+				this.out.writeByte(tag);
+				if (tag == CONSTANT_INTEGER)
+				{
+					this.out.writeInt(value);
+				}
+				else
+				{
+					this.out.writeShort(value);
+				}
+			}
+			catch (final IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			this.size++;
+		}
+
+		private void write(final int tag, final int first, final int second)
+		{
+			try
+			{
+				this.out.writeByte(tag);
+				this.out.writeShort(first);
+				this.out.writeShort(second);
+			}
+			catch (final IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			this.size++;
+		}
+
+		public void write(final DataOutputStream classFile) throws IOException
+		{
+			classFile.writeShort(this.size);
+			this.bytes.writeTo(classFile);
+		}
+	}
+
+	// Bytecode with forward and backward jumps to labels, resolved when the code is complete.
+	private static final class Code
+	{
+		private final ConstantPool constants;
+
+		private byte[] bytes = new byte[256];
+
+		private int size;
+
+		private int[] labels = new int[16];
+
+		private int labelCount;
+
+		// Pairs of (offset of the jump instruction, label).
+		private int[] jumps = new int[32];
+
+		private int jumpCount;
+
+		public Code(final ConstantPool constants)
+		{
+			this.constants = constants;
+		}
+
+		public int size()
+		{
+			return this.size;
+		}
+
+		public int newLabel()
+		{
+			if (this.labelCount == this.labels.length)
+			{
+				this.labels = Arrays.copyOf(this.labels, 2 * this.labelCount);
+			}
+			this.labels[this.labelCount] = -1;
+			return this.labelCount++;
+		}
+
+		public void mark(final int label)
+		{
+			this.labels[label] = this.size;
+		}
+
+		public void op(final int opcode)
+		{
+			u1(opcode);
+		}
+
+		public void u1(final int value)
+		{
+			if (this.size == this.bytes.length)
+			{
+				this.bytes = Arrays.copyOf(this.bytes, 2 * this.size);
+			}
+			this.bytes[this.size++] = (byte) value;
+		}
+
+		public void u2(final int value)
+		{
+			u1(value >>> 8);
+			u1(value);
+		}
+
+		public void iinc(final int local, final int increment)
+		{
+			op(IINC);
+			u1(local);
+			u1(increment);
+		}
+
+		public void pushInt(final int value)
+		{
+			if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+			{
+				op(BIPUSH);
+				u1(value);
+			}
+			else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+			{
+				op(SIPUSH);
+				u2(value);
+			}
+			else
+			{
+				op(LDC_W);
+				u2(this.constants.integer(value));
+			}
+		}
+
+		public void jump(final int opcode, final int label)
+		{
+			if (this.jumpCount + 2 > this.jumps.length)
+			{
+				this.jumps = Arrays.copyOf(this.jumps, 2 * this.jumps.length);
+			}
+			this.jumps[this.jumpCount++] = this.size;
+			this.jumps[this.jumpCount++] = label;
+			op(opcode);
+			u2(0);
+		}
+
+		public byte[] toByteArray()
+		{
+			final byte[] code = Arrays.copyOf(this.bytes, this.size);
+			for (int i = 0; i < this.jumpCount; i += 2)
+			{
+				final int offset = this.jumps[i];
+				final int target = this.labels[this.jumps[i + 1]];
+				if (target == -1)
+				{
+					throw new IllegalStateException("Unmarked label.");
+				}
+				final int relative = target - offset;
+				code[offset + 1] = (byte) (relative >>> 8);
+				code[offset + 2] = (byte) relative;
+			}
+			return code;
+		}
+	}
+
+	private BytecodeCompiler()
+	{
+		// Empty.
+	}
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+public interface CaptureExecutor
+	extends
+		Executor
+{
+	// Returns the slots of the longest match in text[offset, end) starting at offset, or null. Slots 0 and 1 hold the
+	// match itself and slots 2n and 2n + 1 group n, -1 when the group did not participate.
+	int[] capture(CharSequence text, int offset, int end);
+}
@@ -20,14 +20,24 @@ import com.google.common.base.Preconditions;
 
 public final class CodePoint
 {
+	private static final CodePoint[] LATIN_1 = new CodePoint[0x100];
+
+	static
+	{
+		for (int codePoint = 0; codePoint < LATIN_1.length; codePoint++)
+		{
+			LATIN_1[codePoint] = new CodePoint(codePoint);
+		}
+	}
+
 	public static final CodePoint of(final int codePoint)
 	{
-		return new CodePoint(codePoint);
+		return codePoint >= 0 && codePoint < LATIN_1.length ? LATIN_1[codePoint] : new CodePoint(codePoint);
 	}
 
 	public static final CodePoint of(final char ch)
 	{
-		return new CodePoint(ch);
+		return ch < LATIN_1.length ? LATIN_1[ch] : new CodePoint(ch);
 	}
 
 	public static final CodePoint of(final char high, final char low)
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import java.util.SortedSet;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+public final class CodePointClasses
+{
+	private static final int ASCII_SIZE = 0x80;
+
+	public static final CodePointClasses of(final ImmutableList<Instruction> program)
+	{
+		final SortedSet<Integer> lowerBounds = Sets.newTreeSet();
+		lowerBounds.add(Integer.valueOf(0));
+		for (final Instruction instruction : program)
+		{
+			switch (instruction.type)
+			{
+				case SINGLE:
+				{
+					final Instruction.Single single = instruction.cast();
+					lowerBounds.add(Integer.valueOf(single.codePoint.value));
+					lowerBounds.add(Integer.valueOf(single.codePoint.value + 1));
+					break;
+				}
+				case RANGE:
+				{
+					final Instruction.Range range = instruction.cast();
+					for (int i = 0; i < range.codePoints.rangeCount(); i++)
+					{
+						lowerBounds.add(Integer.valueOf(range.codePoints.lowerBound(i)));
+						lowerBounds.add(Integer.valueOf(range.codePoints.upperBound(i) + 1));
+					}
+					break;
+				}
+				case REPEAT:
+				{
+					final Instruction.Repeat repeat = instruction.cast();
+					for (int i = 0; i < repeat.codePoints.rangeCount(); i++)
+					{
+						lowerBounds.add(Integer.valueOf(repeat.codePoints.lowerBound(i)));
+						lowerBounds.add(Integer.valueOf(repeat.codePoints.upperBound(i) + 1));
+					}
+					break;
+				}
+				default:
+				{
+					break;
+				}
+			}
+		}
+		lowerBounds.remove(Integer.valueOf(Character.MAX_CODE_POINT + 1));
+		return new CodePointClasses(Ints.toArray(lowerBounds));
+	}
+
+	private final int[] lowerBounds;
+
+	private final int[] asciiClasses;
+
+	private CodePointClasses(final int[] lowerBounds)
+	{
+		this.lowerBounds = lowerBounds;
+		this.asciiClasses = new int[ASCII_SIZE];
+		for (int codePoint = 0; codePoint < ASCII_SIZE; codePoint++)
+		{
+			this.asciiClasses[codePoint] = search(codePoint);
+		}
+	}
+
+	public int size()
+	{
+		return this.lowerBounds.length;
+	}
+
+	public int classOf(final int codePoint)
+	{
+		return codePoint < ASCII_SIZE ? this.asciiClasses[codePoint] : search(codePoint);
+	}
+
+	public int representative(final int classId)
+	{
+		return this.lowerBounds[classId];
+	}
+
+	private int search(final int codePoint)
+	{
+		final int index = Arrays.binarySearch(this.lowerBounds, codePoint);
+		return index >= 0 ? index : -index - 2;
+	}
+}
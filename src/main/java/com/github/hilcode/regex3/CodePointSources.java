@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import com.github.hilcode.regex3.Regex.CodePointSource;
+import com.google.common.base.Preconditions;
+
+public final class CodePointSources
+{
+	public static final int REPLACEMENT_CHARACTER = 0xFFFD;
+
+	private static final int ASCII_LIMIT = 0x80;
+
+	public static final CodePointSource of(final String text)
+	{
+		Preconditions.checkNotNull(text, "Missing 'text'.");
+		return new StringSource(text);
+	}
+
+	public static final CodePointSource of(final CharSequence text)
+	{
+		Preconditions.checkNotNull(text, "Missing 'text'.");
+		return text instanceof String
+				? new StringSource((String) text)
+				: new CharSequenceSource(text, 0, text.length());
+	}
+
+	public static final CodePointSource of(final char[] text)
+	{
+		Preconditions.checkNotNull(text, "Missing 'text'.");
+		return new CharArraySource(text, 0, text.length);
+	}
+
+	public static final CodePointSource of(final char[] text, final int offset, final int length)
+	{
+		Preconditions.checkNotNull(text, "Missing 'text'.");
+		Preconditions.checkPositionIndexes(offset, offset + length, text.length);
+		return new CharArraySource(text, offset, offset + length);
+	}
+
+	public static final CodePointSource of(final CharBuffer text)
+	{
+		Preconditions.checkNotNull(text, "Missing 'text'.");
+		if (text.hasArray())
+		{
+			final int offset = text.arrayOffset() + text.position();
+			return new CharArraySource(text.array(), offset, offset + text.remaining());
+		}
+		return new CharSequenceSource(text, 0, text.remaining());
+	}
+
+	public static final CodePointSource ofUtf8(final byte[] bytes)
+	{
+		Preconditions.checkNotNull(bytes, "Missing 'bytes'.");
+		return new Utf8ByteArraySource(bytes, 0, bytes.length);
+	}
+
+	public static final CodePointSource ofUtf8(final byte[] bytes, final int offset, final int length)
+	{
+		Preconditions.checkNotNull(bytes, "Missing 'bytes'.");
+		Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+		return new Utf8ByteArraySource(bytes, offset, offset + length);
+	}
+
+	public static final CodePointSource ofUtf8(final ByteBuffer bytes)
+	{
+		Preconditions.checkNotNull(bytes, "Missing 'bytes'.");
+		if (bytes.hasArray())
+		{
+			final int offset = bytes.arrayOffset() + bytes.position();
+			return new Utf8ByteArraySource(bytes.array(), offset, offset + bytes.remaining());
+		}
+		return new Utf8ByteBufferSource(bytes, bytes.position(), bytes.limit());
+	}
+
+	public static final CodePointSource ofBytes(final byte[] bytes)
+	{
+		Preconditions.checkNotNull(bytes, "Missing 'bytes'.");
+		return new ByteArraySource(bytes, 0, bytes.length);
+	}
+
+	public static final CodePointSource ofBytes(final byte[] bytes, final int offset, final int length)
+	{
+		Preconditions.checkNotNull(bytes, "Missing 'bytes'.");
+		Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+		return new ByteArraySource(bytes, offset, offset + length);
+	}
+
+	public static final CodePointSource ofBytes(final ByteBuffer bytes)
+	{
+		Preconditions.checkNotNull(bytes, "Missing 'bytes'.");
+		if (bytes.hasArray())
+		{
+			final int offset = bytes.arrayOffset() + bytes.position();
+			return new ByteArraySource(bytes.array(), offset, offset + bytes.remaining());
+		}
+		return new ByteBufferSource(bytes, bytes.position(), bytes.limit());
+	}
+
+	private CodePointSources()
+	{
+		// Empty.
+	}
+
+	public static final class StringSource
+		implements
+			CodePointSource
+	{
+		private final String text;
+
+		private int index;
+
+		public StringSource(final String text)
+		{
+			this.text = text;
+		}
+
+		@Override
+		public int nextCodePoint()
+		{
+			if (this.index == this.text.length())
+			{
+				return EOF;
+			}
+			final char ch = this.text.charAt(this.index++);
+			if (ch < ASCII_LIMIT || !Character.isHighSurrogate(ch) || this.index == this.text.length())
+			{
+				return ch;
+			}
+			final char low = this.text.charAt(this.index);
+			if (!Character.isLowSurrogate(low))
+			{
+				return ch;
+			}
+			this.index++;
+			return Character.toCodePoint(ch, low);
+		}
+	}
+
+	public static final class CharSequenceSource
+		implements
+			CodePointSource
+	{
+		private CharSequence text;
+
+		private int end;
+
+		private int index;
+
+		public CharSequenceSource(final CharSequence text, final int start, final int end)
+		{
+			reset(text, start, end);
+		}
+
+		// Lets per-thread scratch space reuse a source for many texts.
+		public CharSequenceSource reset(final CharSequence text, final int start, final int end)
+		{
+			this.text = text;
+			this.index = start;
+			this.end = end;
+			return this;
+		}
+
+		@Override
+		public int nextCodePoint()
+		{
+			if (this.index == this.end)
+			{
+				return EOF;
+			}
+			final char ch = this.text.charAt(this.index++);
+			if (ch < ASCII_LIMIT || !Character.isHighSurrogate(ch) || this.index == this.end)
+			{
+				return ch;
+			}
+			final char low = this.text.charAt(this.index);
+			if (!Character.isLowSurrogate(low))
+			{
+				return ch;
+			}
+			this.index++;
+			return Character.toCodePoint(ch, low);
+		}
+	}
+
+	public static final class CharArraySource
+		implements
+			CodePointSource
+	{
+		private final char[] text;
+
+		private final int end;
+
+		private int index;
+
+		public CharArraySource(final char[] text, final int start, final int end)
+		{
+			this.text = text;
+			this.index = start;
+			this.end = end;
+		}
+
+		@Override
+		public int nextCodePoint()
+		{
+			if (this.index == this.end)
+			{
+				return EOF;
+			}
+			final char ch = this.text[this.index++];
+			if (ch < ASCII_LIMIT || !Character.isHighSurrogate(ch) || this.index == this.end)
+			{
+				return ch;
+			}
+			final char low = this.text[this.index];
+			if (!Character.isLowSurrogate(low))
+			{
+				return ch;
+			}
+			this.index++;
+			return Character.toCodePoint(ch, low);
+		}
+	}
+
+	// Malformed sequences decode to one U+FFFD per maximal subpart, as recommended by Unicode.
+	public abstract static class Utf8Source
+		implements
+			CodePointSource
+	{
+		private final int end;
+
+		private int index;
+
+		protected Utf8Source(final int start, final int end)
+		{
+			this.index = start;
+			this.end = end;
+		}
+
+		protected abstract int byteAt(int index);
+
+		@Override
+		public final int nextCodePoint()
+		{
+			if (this.index == this.end)
+			{
+				return EOF;
+			}
+			final int b0 = byteAt(this.index);
+			if (b0 < ASCII_LIMIT)
+			{
+				this.index++;
+				return b0;
+			}
+			final int continuationCount;
+			final int min;
+			final int max;
+			if (b0 < 0xC2)
+			{
+				this.index++;
+				return REPLACEMENT_CHARACTER;
+			}
+			else if (b0 < 0xE0)
+			{
+				continuationCount = 1;
+				min = 0x80;
+				max = 0xBF;
+			}
+			else if (b0 < 0xF0)
+			{
+				continuationCount = 2;
+				min = b0 == 0xE0 ? 0xA0 : 0x80;
+				max = b0 == 0xED ? 0x9F : 0xBF;
+			}
+			else if (b0 < 0xF5)
+			{
+				continuationCount = 3;
+				min = b0 == 0xF0 ? 0x90 : 0x80;
+				max = b0 == 0xF4 ? 0x8F : 0xBF;
+			}
+			else
+			{
+				this.index++;
+				return REPLACEMENT_CHARACTER;
+			}
+			if (!isContinuation(this.index + 1, min, max))
+			{
+				this.index++;
+				return REPLACEMENT_CHARACTER;
+			}
+			int codePoint = b0 & 0x3F >> continuationCount;
+			for (int i = 1; i <= continuationCount; i++)
+			{
+				if (i > 1 && !isContinuation(this.index + i, 0x80, 0xBF))
+				{
+					this.index += i;
+					return REPLACEMENT_CHARACTER;
+				}
+				codePoint = codePoint << 6 | byteAt(this.index + i) & 0x3F;
+			}
+			this.index += continuationCount + 1;
+			return codePoint;
+		}
+
+		private boolean isContinuation(final int index, final int min, final int max)
+		{
+			if (index >= this.end)
+			{
+				return false;
+			}
+			final int b = byteAt(index);
+			return min <= b && b <= max;
+		}
+	}
+
+	public static final class Utf8ByteArraySource
+		extends
+			Utf8Source
+	{
+		private final byte[] bytes;
+
+		public Utf8ByteArraySource(final byte[] bytes, final int start, final int end)
+		{
+			super(start, end);
+			this.bytes = bytes;
+		}
+
+		@Override
+		protected int byteAt(final int index)
+		{
+			return this.bytes[index] & 0xFF;
+		}
+	}
+
+	public static final class Utf8ByteBufferSource
+		extends
+			Utf8Source
+	{
+		private final ByteBuffer bytes;
+
+		public Utf8ByteBufferSource(final ByteBuffer bytes, final int start, final int end)
+		{
+			super(start, end);
+			this.bytes = bytes;
+		}
+
+		@Override
+		protected int byteAt(final int index)
+		{
+			return this.bytes.get(index) & 0xFF;
+		}
+	}
+
+	// Yields raw byte values, for programs lowered by Utf8Compiler.
+	public static final class ByteArraySource
+		implements
+			CodePointSource
+	{
+		private final byte[] bytes;
+
+		private final int end;
+
+		private int index;
+
+		public ByteArraySource(final byte[] bytes, final int start, final int end)
+		{
+			this.bytes = bytes;
+			this.index = start;
+			this.end = end;
+		}
+
+		@Override
+		public int nextCodePoint()
+		{
+			return this.index == this.end ? EOF : this.bytes[this.index++] & 0xFF;
+		}
+	}
+
+	public static final class ByteBufferSource
+		implements
+			CodePointSource
+	{
+		private final ByteBuffer bytes;
+
+		private final int end;
+
+		private int index;
+
+		public ByteBufferSource(final ByteBuffer bytes, final int start, final int end)
+		{
+			this.bytes = bytes;
+			this.index = start;
+			this.end = end;
+		}
+
+		@Override
+		public int nextCodePoint()
+		{
+			return this.index == this.end ? EOF : this.bytes.get(this.index++) & 0xFF;
+		}
+	}
+}
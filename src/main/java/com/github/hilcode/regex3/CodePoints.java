@@ -15,13 +15,19 @@
  */
 package com.github.hilcode.regex3;
 
-import java.util.BitSet;
+import java.util.Arrays;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
 
 public final class CodePoints
 {
+	public static final CodePoints NONE = new CodePoints(new int[0]);
+
+	public static final CodePoints ALL = new CodePoints(new int[] { 0, Character.MAX_CODE_POINT });
+
+	private static final int LATIN_1_SIZE = 0x100;
+
 	public static final Builder include(final char ch)
 	{
 		return new CodePoints.Builder().and(ch);
@@ -52,50 +58,246 @@ public final class CodePoints
 		return new CodePoints.Builder().and(lowerBound, upperBound);
 	}
 
-	public final BitSet value;
+	// Sorted, disjoint and non-adjacent inclusive ranges: lower bound at 2i, upper bound at 2i + 1.
+	private final int[] ranges;
+
+	private final long[] latin1;
 
-	private CodePoints(final BitSet value)
+	// The number of code points in the ranges before range i, for rank and select.
+	private final int[] offsets;
+
+	private final int size;
+
+	private CodePoints(final int[] ranges)
 	{
-		Preconditions.checkArgument(!value.isEmpty(), "Empty CodePoints.");
-		this.value = value;
+		this.ranges = ranges;
+		this.latin1 = new long[LATIN_1_SIZE / Long.SIZE];
+		this.offsets = new int[ranges.length / 2];
+		int size = 0;
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			this.offsets[i / 2] = size;
+			size += ranges[i + 1] - ranges[i] + 1;
+			final int upperBound = Math.min(ranges[i + 1], LATIN_1_SIZE - 1);
+			for (int codePoint = ranges[i]; codePoint <= upperBound; codePoint++)
+			{
+				this.latin1[codePoint >>> 6] |= 1L << codePoint;
+			}
+		}
+		this.size = size;
 	}
 
 	public boolean contains(final CodePoint codePoint)
 	{
-		return this.value.get(codePoint.value);
+		return contains(codePoint.value);
+	}
+
+	public boolean contains(final int codePoint)
+	{
+		if (codePoint < LATIN_1_SIZE)
+		{
+			return codePoint >= 0 && (this.latin1[codePoint >>> 6] & 1L << codePoint) != 0;
+		}
+		int low = 0;
+		int high = this.ranges.length / 2 - 1;
+		while (low <= high)
+		{
+			final int middle = low + high >>> 1;
+			if (codePoint < this.ranges[2 * middle])
+			{
+				high = middle - 1;
+			}
+			else if (codePoint > this.ranges[2 * middle + 1])
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.ranges.length == 0;
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public int rangeCount()
+	{
+		return this.ranges.length / 2;
+	}
+
+	public int lowerBound(final int range)
+	{
+		return this.ranges[2 * range];
+	}
+
+	public int upperBound(final int range)
+	{
+		return this.ranges[2 * range + 1];
+	}
+
+	// Returns the code point with the given rank, in O(log rangeCount()).
+	public int get(final int index)
+	{
+		Preconditions.checkElementIndex(index, this.size);
+		final int found = Arrays.binarySearch(this.offsets, index);
+		final int range = found >= 0 ? found : -found - 2;
+		return this.ranges[2 * range] + index - this.offsets[range];
+	}
+
+	// Returns the number of code points in this set that are smaller than the given one.
+	public int rank(final int codePoint)
+	{
+		int low = 0;
+		int high = this.ranges.length / 2 - 1;
+		while (low <= high)
+		{
+			final int middle = low + high >>> 1;
+			if (codePoint < this.ranges[2 * middle])
+			{
+				high = middle - 1;
+			}
+			else if (codePoint > this.ranges[2 * middle + 1])
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				return this.offsets[middle] + codePoint - this.ranges[2 * middle];
+			}
+		}
+		return low < this.offsets.length ? this.offsets[low] : this.size;
+	}
+
+	public CodePoints complement()
+	{
+		final int[] ranges = new int[this.ranges.length + 2];
+		int size = 0;
+		int lowerBound = 0;
+		for (int i = 0; i < this.ranges.length; i += 2)
+		{
+			if (lowerBound < this.ranges[i])
+			{
+				ranges[size++] = lowerBound;
+				ranges[size++] = this.ranges[i] - 1;
+			}
+			lowerBound = this.ranges[i + 1] + 1;
+		}
+		if (lowerBound <= Character.MAX_CODE_POINT)
+		{
+			ranges[size++] = lowerBound;
+			ranges[size++] = Character.MAX_CODE_POINT;
+		}
+		return new CodePoints(Arrays.copyOf(ranges, size));
+	}
+
+	public CodePoints union(final CodePoints other)
+	{
+		final int[] ranges = new int[this.ranges.length + other.ranges.length];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		while (i < this.ranges.length || j < other.ranges.length)
+		{
+			final int[] next;
+			final int index;
+			if (j == other.ranges.length || i < this.ranges.length && this.ranges[i] <= other.ranges[j])
+			{
+				next = this.ranges;
+				index = i;
+				i += 2;
+			}
+			else
+			{
+				next = other.ranges;
+				index = j;
+				j += 2;
+			}
+			size = append(ranges, size, next[index], next[index + 1]);
+		}
+		return new CodePoints(Arrays.copyOf(ranges, size));
+	}
+
+	public CodePoints intersection(final CodePoints other)
+	{
+		final int[] ranges = new int[this.ranges.length + other.ranges.length];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		while (i < this.ranges.length && j < other.ranges.length)
+		{
+			final int lowerBound = Math.max(this.ranges[i], other.ranges[j]);
+			final int upperBound = Math.min(this.ranges[i + 1], other.ranges[j + 1]);
+			if (lowerBound <= upperBound)
+			{
+				ranges[size++] = lowerBound;
+				ranges[size++] = upperBound;
+			}
+			if (this.ranges[i + 1] < other.ranges[j + 1])
+			{
+				i += 2;
+			}
+			else
+			{
+				j += 2;
+			}
+		}
+		return new CodePoints(Arrays.copyOf(ranges, size));
+	}
+
+	public CodePoints difference(final CodePoints other)
+	{
+		return intersection(other.complement());
+	}
+
+	// Appends a range to sorted ranges, merging it with the last one if they overlap or touch.
+	private static final int append(final int[] ranges, final int size, final int lowerBound, final int upperBound)
+	{
+		if (size > 0 && lowerBound <= ranges[size - 1] + 1)
+		{
+			ranges[size - 1] = Math.max(ranges[size - 1], upperBound);
+			return size;
+		}
+		ranges[size] = lowerBound;
+		ranges[size + 1] = upperBound;
+		return size + 2;
 	}
 
 	public static final class Builder
 	{
-		private final BitSet codePoints = new BitSet();
+		private int[] ranges = new int[8];
+
+		private int size;
 
 		public Builder and(final char ch)
 		{
-			this.codePoints.set(ch);
-			return this;
+			return add(ch, ch);
 		}
 
 		public Builder and(final String surrogate)
 		{
 			Preconditions.checkNotNull(surrogate, "Missing 'surrogate'.");
-			this.codePoints.set(toCodePoint(surrogate));
-			return this;
+			final int codePoint = toCodePoint(surrogate);
+			return add(codePoint, codePoint);
 		}
 
 		public Builder and(final CodePoint codePoint)
 		{
-			this.codePoints.set(codePoint.value);
-			return this;
+			return add(codePoint.value, codePoint.value);
 		}
 
 		public Builder and(final char lowerBound, final char upperBound)
 		{
 			Preconditions.checkArgument(lowerBound <= upperBound, "Invalid range.");
-			for (int codePoint = lowerBound; codePoint <= upperBound; codePoint++)
-			{
-				this.codePoints.set(codePoint);
-			}
-			return this;
+			return add(lowerBound, upperBound);
 		}
 
 		public Builder and(final String lowerBoundSurrogate, final String upperBoundSurrogate)
@@ -105,20 +307,50 @@ public final class CodePoints
 			final int lowerBoundCodePoint = toCodePoint(lowerBoundSurrogate);
 			final int upperBoundCodePoint = toCodePoint(upperBoundSurrogate);
 			Verify.verify(lowerBoundCodePoint <= upperBoundCodePoint, "Invalid range.");
-			this.codePoints.set(lowerBoundCodePoint, upperBoundCodePoint);
-			return this;
+			return add(lowerBoundCodePoint, upperBoundCodePoint);
 		}
 
 		public Builder and(final CodePoint lowerBound, final CodePoint upperBound)
 		{
 			Preconditions.checkArgument(lowerBound.value <= upperBound.value, "Invalid range.");
-			this.codePoints.set(lowerBound.value, upperBound.value);
+			return add(lowerBound.value, upperBound.value);
+		}
+
+		public Builder and(final CodePoints codePoints)
+		{
+			for (int range = 0; range < codePoints.rangeCount(); range++)
+			{
+				add(codePoints.lowerBound(range), codePoints.upperBound(range));
+			}
 			return this;
 		}
 
 		public CodePoints build()
 		{
-			return new CodePoints(this.codePoints);
+			final long[] sortedRanges = new long[this.size / 2];
+			for (int i = 0; i < sortedRanges.length; i++)
+			{
+				sortedRanges[i] = (long) this.ranges[2 * i] << 32 | this.ranges[2 * i + 1];
+			}
+			Arrays.sort(sortedRanges);
+			final int[] ranges = new int[this.size];
+			int size = 0;
+			for (final long range : sortedRanges)
+			{
+				size = append(ranges, size, (int) (range >>> 32), (int) range);
+			}
+			return new CodePoints(Arrays.copyOf(ranges, size));
+		}
+
+		private Builder add(final int lowerBound, final int upperBound)
+		{
+			if (this.size == this.ranges.length)
+			{
+				this.ranges = Arrays.copyOf(this.ranges, this.size * 2);
+			}
+			this.ranges[this.size++] = lowerBound;
+			this.ranges[this.size++] = upperBound;
+			return this;
 		}
 
 		public static final int toCodePoint(final String surrogate)
@@ -133,9 +365,14 @@ public final class CodePoints
 	@Override
 	public String toString()
 	{
+		final StringBuilder sb = new StringBuilder();
+		for (int range = 0; range < rangeCount(); range++)
+		{
+			Instruction.Range.appendRange(sb, lowerBound(range), upperBound(range));
+		}
 		return MoreObjects
 				.toStringHelper(getClass())
-				.add("value", this.value)
+				.add("value", sb)
 				.toString();
 	}
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import com.google.common.base.Preconditions;
+
+// Writes texts generated from a regex, one per line in UTF-8. Batches of texts are generated in parallel and written
+// in order. Batch i uses the i-th generator split off SplittableRandom(seed), so the output depends only on the seed,
+// not on the number of threads.
+public final class CorpusGenerator
+{
+	public static final int BATCH_SIZE = 4096;
+
+	public static final void generate(final Regex regex, final long count, final long seed, final Path file)
+			throws IOException
+	{
+		try (final OutputStream out = Files.newOutputStream(file))
+		{
+			generate(regex, count, seed, out);
+		}
+	}
+
+	public static final void generate(final Regex regex, final long count, final long seed, final OutputStream out)
+			throws IOException
+	{
+		generate(regex, count, seed, out, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism());
+	}
+
+	// At most 2 * parallelism batches are pending at any time, which bounds the memory used.
+	public static final void generate(
+			final Regex regex,
+			final long count,
+			final long seed,
+			final OutputStream out,
+			final ExecutorService executor,
+			final int parallelism) throws IOException
+	{
+		Preconditions.checkNotNull(regex, "Missing 'regex'.");
+		Preconditions.checkArgument(count >= 0, "Invalid 'count': " + count + ".");
+		Preconditions.checkNotNull(out, "Missing 'out'.");
+		Preconditions.checkNotNull(executor, "Missing 'executor'.");
+		Preconditions.checkArgument(parallelism > 0, "Invalid 'parallelism': " + parallelism + ".");
+		final SplittableRandom random = new SplittableRandom(seed);
+		final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+		long remaining = count;
+		try
+		{
+			while (remaining > 0 || !pending.isEmpty())
+			{
+				while (remaining > 0 && pending.size() < 2 * parallelism)
+				{
+					final int batchSize = (int) Math.min(remaining, BATCH_SIZE);
+					final SplittableRandom batchRandom = random.split();
+					pending.add(executor.submit(() -> generateBatch(regex, batchSize, batchRandom)));
+					remaining -= batchSize;
+				}
+				out.write(pending.remove().get());
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while generating texts.");
+		}
+		catch (final ExecutionException e)
+		{
+			throw new IllegalStateException("Unable to generate texts.", e.getCause());
+		}
+		finally
+		{
+			for (final Future<byte[]> batch : pending)
+			{
+				batch.cancel(true);
+			}
+		}
+		out.flush();
+	}
+
+	private static final byte[] generateBatch(final Regex regex, final int batchSize, final SplittableRandom random)
+	{
+		final StringBuilder texts = new StringBuilder();
+		for (int i = 0; i < batchSize; i++)
+		{
+			texts.append(regex.generate(random)).append('\n');
+		}
+		return texts.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private CorpusGenerator()
+	{
+		// Empty.
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import com.google.common.collect.ImmutableList;
+
+// Numbers the states of the REPEAT instructions of a program. The program counter of a REPEAT stands for a count of
+// zero; counts 1 up to max get program counters past the end of the program, one block per REPEAT. Engines treat
+// these like ordinary program counters, so the program itself stays as small as it is, whatever the bounds.
+public final class Counters
+{
+	private final ImmutableList<Instruction> program;
+
+	// The program counters of the REPEAT instructions, in ascending order.
+	private final int[] repeatProgramCounters;
+
+	// The program counter for a count of 1 of each REPEAT.
+	private final int[] bases;
+
+	private final int size;
+
+	public Counters(final ImmutableList<Instruction> program)
+	{
+		this.program = program;
+		int repeatCount = 0;
+		for (final Instruction instruction : program)
+		{
+			if (instruction.type == Instruction.Type.REPEAT)
+			{
+				repeatCount++;
+			}
+		}
+		this.repeatProgramCounters = new int[repeatCount];
+		this.bases = new int[repeatCount];
+		long size = program.size();
+		int repeat = 0;
+		for (int pc = 0; pc < program.size(); pc++)
+		{
+			final Instruction instruction = program.get(pc);
+			if (instruction.type == Instruction.Type.REPEAT)
+			{
+				final Instruction.Repeat repeatInstruction = instruction.cast();
+				this.repeatProgramCounters[repeat] = pc;
+				this.bases[repeat++] = (int) size;
+				size += repeatInstruction.max;
+			}
+		}
+		if (size > Integer.MAX_VALUE)
+		{
+			throw new IllegalStateException("Too many counter states: " + size + ".");
+		}
+		this.size = (int) size;
+	}
+
+	// The number of program counters, including those of the counter states.
+	public int size()
+	{
+		return this.size;
+	}
+
+	// The program counter of the instruction that the given (possibly counter) program counter executes.
+	public int instructionProgramCounter(final int pc)
+	{
+		if (pc < this.program.size())
+		{
+			return pc;
+		}
+		return this.repeatProgramCounters[repeatOf(pc)];
+	}
+
+	public Instruction instruction(final int pc)
+	{
+		return this.program.get(instructionProgramCounter(pc));
+	}
+
+	// The number of code points a REPEAT has consumed so far in the given state.
+	public int count(final int pc)
+	{
+		if (pc < this.program.size())
+		{
+			return 0;
+		}
+		return pc - this.bases[repeatOf(pc)] + 1;
+	}
+
+	// The program counter after consuming a code point at pc.
+	public int next(final int pc)
+	{
+		if (pc >= this.program.size())
+		{
+			return pc + 1;
+		}
+		if (this.program.get(pc).type != Instruction.Type.REPEAT)
+		{
+			return pc + 1;
+		}
+		return this.bases[Arrays.binarySearch(this.repeatProgramCounters, pc)];
+	}
+
+	// The program counter of the instruction following the REPEAT, once it may stop.
+	public int exit(final int pc)
+	{
+		return instructionProgramCounter(pc) + 1;
+	}
+
+	private int repeatOf(final int pc)
+	{
+		final int index = Arrays.binarySearch(this.bases, pc);
+		return index >= 0 ? index : -index - 2;
+	}
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public final class Dfa
+	implements
+		Executor
+{
+	public static final Dfa compile(final ImmutableList<Instruction> program, final int maxStates)
+	{
+		Preconditions.checkArgument(maxStates > 0, "Invalid 'maxStates': " + maxStates + ".");
+		final Nfa nfa = new Nfa(program);
+		final CodePointClasses classes = CodePointClasses.of(program);
+		final int classCount = classes.size();
+		final Map<ProgramCounters, Integer> stateIds = Maps.newHashMap();
+		final List<int[]> states = Lists.newArrayList();
+		final IntList transitions = new IntList();
+		states.add(nfa.start());
+		stateIds.put(new ProgramCounters(states.get(0)), Integer.valueOf(0));
+		for (int state = 0; state < states.size(); state++)
+		{
+			final int[] programCounters = states.get(state);
+			for (int classId = 0; classId < classCount; classId++)
+			{
+				final int[] nextProgramCounters = nfa.step(programCounters, classes.representative(classId));
+				final ProgramCounters key = new ProgramCounters(nextProgramCounters);
+				Integer nextState = stateIds.get(key);
+				if (nextState == null)
+				{
+					if (states.size() == maxStates)
+					{
+						throw new IllegalStateException(String.format(
+								"Unable to compile DFA: more than %d states are needed for a program of %d instructions.",
+								Integer.valueOf(maxStates),
+								Integer.valueOf(program.size())));
+					}
+					nextState = Integer.valueOf(states.size());
+					stateIds.put(key, nextState);
+					states.add(nextProgramCounters);
+				}
+				transitions.add(nextState.intValue());
+			}
+		}
+		final boolean[] accepting = new boolean[states.size()];
+		for (int state = 0; state < states.size(); state++)
+		{
+			accepting[state] = nfa.isAccepting(states.get(state));
+		}
+		return minimize(classes, transitions.toArray(), accepting);
+	}
+
+	private static final Dfa minimize(final CodePointClasses classes, final int[] transitions, final boolean[] accepting)
+	{
+		final int classCount = classes.size();
+		final int stateCount = accepting.length;
+		final Partition partition = new Partition(stateCount);
+		for (int state = 0; state < stateCount; state++)
+		{
+			if (accepting[state])
+			{
+				partition.mark(state);
+			}
+		}
+		partition.split();
+		final int[][] inverseStart = new int[classCount][];
+		final int[][] inverseSources = new int[classCount][];
+		for (int classId = 0; classId < classCount; classId++)
+		{
+			final int[] start = new int[stateCount + 1];
+			for (int state = 0; state < stateCount; state++)
+			{
+				start[transitions[state * classCount + classId] + 1]++;
+			}
+			for (int state = 0; state < stateCount; state++)
+			{
+				start[state + 1] += start[state];
+			}
+			final int[] sources = new int[stateCount];
+			final int[] next = Arrays.copyOf(start, stateCount);
+			for (int state = 0; state < stateCount; state++)
+			{
+				sources[next[transitions[state * classCount + classId]]++] = state;
+			}
+			inverseStart[classId] = start;
+			inverseSources[classId] = sources;
+		}
+		final int[] pending = new int[stateCount];
+		int pendingSize = 0;
+		final boolean[] isPending = new boolean[stateCount];
+		for (int block = 0; block < partition.blockCount; block++)
+		{
+			pending[pendingSize++] = block;
+			isPending[block] = true;
+		}
+		final int[] splitter = new int[stateCount];
+		while (pendingSize > 0)
+		{
+			final int block = pending[--pendingSize];
+			isPending[block] = false;
+			final int splitterSize = partition.copyBlock(block, splitter);
+			for (int classId = 0; classId < classCount; classId++)
+			{
+				final int[] start = inverseStart[classId];
+				final int[] sources = inverseSources[classId];
+				for (int i = 0; i < splitterSize; i++)
+				{
+					final int target = splitter[i];
+					for (int j = start[target]; j < start[target + 1]; j++)
+					{
+						partition.mark(sources[j]);
+					}
+				}
+				final int oldBlockCount = partition.blockCount;
+				partition.split();
+				for (int newBlock = oldBlockCount; newBlock < partition.blockCount; newBlock++)
+				{
+					final int oldBlock = partition.splitFrom[newBlock];
+					if (isPending[oldBlock] || partition.size(newBlock) <= partition.size(oldBlock))
+					{
+						pending[pendingSize++] = newBlock;
+						isPending[newBlock] = true;
+					}
+					else
+					{
+						pending[pendingSize++] = oldBlock;
+						isPending[oldBlock] = true;
+					}
+				}
+			}
+		}
+		final int minimalStateCount = partition.blockCount;
+		final int startBlock = partition.blockOf[0];
+		final int[] minimalTransitions = new int[minimalStateCount * classCount];
+		final boolean[] minimalAccepting = new boolean[minimalStateCount];
+		for (int block = 0; block < minimalStateCount; block++)
+		{
+			final int state = partition.representative(block);
+			minimalAccepting[renumber(block, startBlock)] = accepting[state];
+			for (int classId = 0; classId < classCount; classId++)
+			{
+				final int nextBlock = partition.blockOf[transitions[state * classCount + classId]];
+				minimalTransitions[renumber(block, startBlock) * classCount + classId] = renumber(nextBlock, startBlock);
+			}
+		}
+		return new Dfa(classes, minimalTransitions, minimalAccepting);
+	}
+
+	// Swaps the start block with block 0 so that the start state is always 0.
+	private static final int renumber(final int block, final int startBlock)
+	{
+		return block == startBlock ? 0 : block == 0 ? startBlock : block;
+	}
+
+	static final class ProgramCounters
+	{
+		public final int[] value;
+
+		private final int hashCode;
+
+		public ProgramCounters(final int[] value)
+		{
+			this.value = value;
+			this.hashCode = Arrays.hashCode(value);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object object)
+		{
+			if (this == object)
+			{
+				return true;
+			}
+			if (object == null || getClass() != object.getClass())
+			{
+				return false;
+			}
+			final ProgramCounters other = (ProgramCounters) object;
+			return Arrays.equals(this.value, other.value);
+		}
+	}
+
+	private static final class IntList
+	{
+		private int[] values = new int[16];
+
+		private int size;
+
+		public void add(final int value)
+		{
+			if (this.size == this.values.length)
+			{
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}
+			this.values[this.size++] = value;
+		}
+
+		public int[] toArray()
+		{
+			return Arrays.copyOf(this.values, this.size);
+		}
+	}
+
+	// Partition refinement over states; marked states are moved to the front of their block.
+	private static final class Partition
+	{
+		public final int[] blockOf;
+
+		public final int[] splitFrom;
+
+		public int blockCount;
+
+		private final int[] elements;
+
+		private final int[] locations;
+
+		private final int[] first;
+
+		private final int[] end;
+
+		private final int[] marked;
+
+		private final int[] touched;
+
+		private int touchedCount;
+
+		public Partition(final int size)
+		{
+			this.blockOf = new int[size];
+			this.splitFrom = new int[size];
+			this.elements = new int[size];
+			this.locations = new int[size];
+			this.first = new int[size];
+			this.end = new int[size];
+			this.marked = new int[size];
+			this.touched = new int[size];
+			for (int element = 0; element < size; element++)
+			{
+				this.elements[element] = element;
+				this.locations[element] = element;
+			}
+			this.end[0] = size;
+			this.blockCount = 1;
+		}
+
+		public int size(final int block)
+		{
+			return this.end[block] - this.first[block];
+		}
+
+		public int representative(final int block)
+		{
+			return this.elements[this.first[block]];
+		}
+
+		public int copyBlock(final int block, final int[] target)
+		{
+			final int size = size(block);
+			System.arraycopy(this.elements, this.first[block], target, 0, size);
+			return size;
+		}
+
+		public void mark(final int element)
+		{
+			final int block = this.blockOf[element];
+			final int location = this.locations[element];
+			final int markedLocation = this.first[block] + this.marked[block];
+			if (location < markedLocation)
+			{
+				return;
+			}
+			if (this.marked[block] == 0)
+			{
+				this.touched[this.touchedCount++] = block;
+			}
+			final int other = this.elements[markedLocation];
+			this.elements[markedLocation] = element;
+			this.locations[element] = markedLocation;
+			this.elements[location] = other;
+			this.locations[other] = location;
+			this.marked[block]++;
+		}
+
+		public void split()
+		{
+			for (int i = 0; i < this.touchedCount; i++)
+			{
+				final int block = this.touched[i];
+				final int markedCount = this.marked[block];
+				this.marked[block] = 0;
+				if (markedCount == size(block))
+				{
+					continue;
+				}
+				final int newBlock = this.blockCount++;
+				this.first[newBlock] = this.first[block];
+				this.end[newBlock] = this.first[block] + markedCount;
+				this.first[block] = this.end[newBlock];
+				this.splitFrom[newBlock] = block;
+				for (int location = this.first[newBlock]; location < this.end[newBlock]; location++)
+				{
+					this.blockOf[this.elements[location]] = newBlock;
+				}
+			}
+			this.touchedCount = 0;
+		}
+	}
+
+	private final CodePointClasses classes;
+
+	private final int classCount;
+
+	private final int[] transitions;
+
+	private final boolean[] accepting;
+
+	private final boolean[] terminal;
+
+	private Dfa(final CodePointClasses classes, final int[] transitions, final boolean[] accepting)
+	{
+		this.classes = classes;
+		this.classCount = classes.size();
+		this.transitions = transitions;
+		this.accepting = accepting;
+		this.terminal = findTerminalStates();
+	}
+
+	public int getStateCount()
+	{
+		return this.accepting.length;
+	}
+
+	public int getClassCount()
+	{
+		return this.classCount;
+	}
+
+	CodePointClasses getClasses()
+	{
+		return this.classes;
+	}
+
+	int transition(final int state, final int classId)
+	{
+		return this.transitions[state * this.classCount + classId];
+	}
+
+	boolean isAccepting(final int state)
+	{
+		return this.accepting[state];
+	}
+
+	boolean isTerminal(final int state)
+	{
+		return this.terminal[state];
+	}
+
+	@Override
+	public String getName()
+	{
+		return "dfa";
+	}
+
+	@Override
+	public int longestMatch(final Regex.CodePointSource source)
+	{
+		int state = 0;
+		int length = 0;
+		int longestMatchLength = -1;
+		while (true)
+		{
+			if (this.accepting[state])
+			{
+				longestMatchLength = length;
+			}
+			if (this.terminal[state])
+			{
+				return longestMatchLength;
+			}
+			final int codePoint = source.nextCodePoint();
+			if (codePoint == Regex.CodePointSource.EOF)
+			{
+				return longestMatchLength;
+			}
+			length += Character.charCount(codePoint);
+			state = this.transitions[state * this.classCount + this.classes.classOf(codePoint)];
+		}
+	}
+
+	// A state is terminal when none of its successors can still reach an accepting state.
+	private boolean[] findTerminalStates()
+	{
+		final int stateCount = this.accepting.length;
+		final int[] predecessorStart = new int[stateCount + 1];
+		for (final int target : this.transitions)
+		{
+			predecessorStart[target + 1]++;
+		}
+		for (int state = 0; state < stateCount; state++)
+		{
+			predecessorStart[state + 1] += predecessorStart[state];
+		}
+		final int[] predecessors = new int[this.transitions.length];
+		final int[] next = Arrays.copyOf(predecessorStart, stateCount);
+		for (int i = 0; i < this.transitions.length; i++)
+		{
+			predecessors[next[this.transitions[i]]++] = i / this.classCount;
+		}
+		final boolean[] live = new boolean[stateCount];
+		final int[] pending = new int[stateCount];
+		int pendingSize = 0;
+		for (int state = 0; state < stateCount; state++)
+		{
+			if (this.accepting[state])
+			{
+				live[state] = true;
+				pending[pendingSize++] = state;
+			}
+		}
+		while (pendingSize > 0)
+		{
+			final int state = pending[--pendingSize];
+			for (int i = predecessorStart[state]; i < predecessorStart[state + 1]; i++)
+			{
+				final int predecessor = predecessors[i];
+				if (!live[predecessor])
+				{
+					live[predecessor] = true;
+					pending[pendingSize++] = predecessor;
+				}
+			}
+		}
+		final boolean[] terminal = new boolean[stateCount];
+		for (int state = 0; state < stateCount; state++)
+		{
+			terminal[state] = true;
+			for (int classId = 0; classId < this.classCount; classId++)
+			{
+				if (live[this.transitions[state * this.classCount + classId]])
+				{
+					terminal[state] = false;
+					break;
+				}
+			}
+		}
+		return terminal;
+	}
+}
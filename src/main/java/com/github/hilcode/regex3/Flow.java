@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+// The interfaces of java.util.concurrent.Flow, which Java 8 lacks. They have the same methods and contracts, so that
+// adapting to the real ones takes no more than a lambda or a delegating wrapper.
+public final class Flow
+{
+	@FunctionalInterface
+	public interface Publisher<T>
+	{
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	public interface Subscriber<T>
+	{
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	public interface Subscription
+	{
+		void request(long n);
+
+		void cancel();
+	}
+
+	public interface Processor<T, R>
+		extends
+			Subscriber<T>,
+			Publisher<R>
+	{
+		// Empty.
+	}
+
+	private Flow()
+	{
+		// Empty.
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+// Searches files for lines that contain a match without decoding them. Each file is memory-mapped and its bytes are run
+// through a DFA for [^\n]*pattern, which accepts as soon as the line so far contains a match; the rest of the line is
+// only scanned for its end. The pattern is compiled to UTF-8, but the prefix matches any byte but '\n', so that invalid
+// UTF-8 before a match does not hide it. A DFA too large to compile ahead of time is built while scanning instead.
+public final class Grep
+{
+	// A single mapping is limited to Integer.MAX_VALUE bytes, so larger files are mapped one window at a time.
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	private static final LineHandler FIRST_LINE = (lineNumber, offset, line) -> false;
+
+	private static final CodePoints ANY_BYTE_BUT_NEWLINE =
+			CodePoints.include('\u0000', '\u0009').and('\u000B', '\u00FF').build();
+
+	public interface LineHandler
+	{
+		// Line numbers count from 1 and offset is the byte offset of the line in the file. The line is without its
+		// '\n' and only valid during the call. Returns false to stop searching.
+		boolean onLine(long lineNumber, long offset, ByteBuffer line) throws IOException;
+	}
+
+	public static final Grep compile(final Regex.Builder pattern)
+	{
+		return compile(pattern, LazyDfa.DEFAULT_MAX_STATES);
+	}
+
+	public static final Grep compile(final Regex.Builder pattern, final int maxStates)
+	{
+		Preconditions.checkNotNull(pattern, "Missing 'pattern'.");
+		Preconditions.checkArgument(maxStates > 0, "Invalid 'maxStates': " + maxStates + ".");
+		final ImmutableList<Instruction> utf8Program = Utf8Compiler.compile(Optimizer.optimize(ImmutableList
+				.<Instruction> builder()
+				.addAll(pattern.toProgram())
+				.add(Instruction.Success.SUCCESS)
+				.build()));
+		// Bytes are read as the code points 0 to 255, so the prefix is not lowered to UTF-8.
+		final ImmutableList<Instruction> program = ImmutableList.<Instruction> builder()
+				.addAll(Regex.zeroOrMore(Regex.codePoints(ANY_BYTE_BUT_NEWLINE)).toProgram())
+				.addAll(utf8Program)
+				.build();
+		try
+		{
+			return new Grep(Optional.of(new Table(Dfa.compile(program, maxStates))), new Nfa(program), maxStates);
+		}
+		catch (final IllegalStateException e)
+		{
+			return new Grep(Optional.<Table> absent(), new Nfa(program), maxStates);
+		}
+	}
+
+	// A byte-level DFA, either compiled ahead of time or built from the NFA while scanning, in which case it starts
+	// over when it reaches maxStates states. State 0 is the start state.
+	private static final class Table
+	{
+		private final Optional<Nfa> nfa;
+
+		private final int maxStates;
+
+		private final Map<Dfa.ProgramCounters, Integer> stateIds = Maps.newHashMap();
+
+		private final List<int[]> states = Lists.newArrayList();
+
+		// Indexed by state * 256 + byte; -1 where the transition has not been built yet.
+		public int[] transitions;
+
+		public boolean[] accepting;
+
+		public Table(final Dfa dfa)
+		{
+			final int stateCount = dfa.getStateCount();
+			this.nfa = Optional.absent();
+			this.maxStates = stateCount;
+			this.transitions = new int[stateCount << 8];
+			this.accepting = new boolean[stateCount];
+			for (int state = 0; state < stateCount; state++)
+			{
+				for (int b = 0; b < 0x100; b++)
+				{
+					this.transitions[state << 8 | b] = dfa.transition(state, dfa.getClasses().classOf(b));
+				}
+				this.accepting[state] = dfa.isAccepting(state);
+			}
+		}
+
+		public Table(final Nfa nfa, final int maxStates)
+		{
+			this.nfa = Optional.of(nfa);
+			this.maxStates = maxStates;
+			this.transitions = new int[0];
+			this.accepting = new boolean[0];
+			intern(nfa.start());
+		}
+
+		public int getStateCount()
+		{
+			return this.nfa.isPresent() ? this.states.size() : this.accepting.length;
+		}
+
+		// Builds the transition from the state on the byte and returns the next state. When the table is full, it
+		// starts over with only the start state and the given state, which is renumbered, before building it.
+		public int step(final int state, final int b)
+		{
+			final int[] programCounters = this.states.get(state);
+			final int[] nextProgramCounters = this.nfa.get().step(programCounters, b);
+			int fromState = state;
+			Integer nextState = this.stateIds.get(new Dfa.ProgramCounters(nextProgramCounters));
+			if (nextState == null)
+			{
+				if (this.states.size() >= this.maxStates)
+				{
+					final int[] start = this.states.get(0);
+					this.stateIds.clear();
+					this.states.clear();
+					Arrays.fill(this.transitions, -1);
+					intern(start);
+					fromState = intern(programCounters);
+					nextState = this.stateIds.get(new Dfa.ProgramCounters(nextProgramCounters));
+				}
+				if (nextState == null)
+				{
+					nextState = Integer.valueOf(intern(nextProgramCounters));
+				}
+			}
+			this.transitions[fromState << 8 | b] = nextState.intValue();
+			return nextState.intValue();
+		}
+
+		private int intern(final int[] programCounters)
+		{
+			final Dfa.ProgramCounters key = new Dfa.ProgramCounters(programCounters);
+			final Integer existing = this.stateIds.get(key);
+			if (existing != null)
+			{
+				return existing.intValue();
+			}
+			final int state = this.states.size();
+			this.stateIds.put(key, Integer.valueOf(state));
+			this.states.add(programCounters);
+			if (state == this.accepting.length)
+			{
+				final int capacity = Math.max(16, state * 2);
+				final int oldLength = this.transitions.length;
+				this.transitions = Arrays.copyOf(this.transitions, capacity << 8);
+				Arrays.fill(this.transitions, oldLength, this.transitions.length, -1);
+				this.accepting = Arrays.copyOf(this.accepting, capacity);
+			}
+			this.accepting[state] = this.nfa.get().isAccepting(programCounters);
+			return state;
+		}
+	}
+
+	private final Optional<Table> table;
+
+	// Used when the DFA was too large to compile ahead of time.
+	private final ThreadLocal<Table> lazyTables;
+
+	private Grep(final Optional<Table> table, final Nfa nfa, final int maxStates)
+	{
+		this.table = table;
+		this.lazyTables = ThreadLocal.withInitial(() -> new Table(nfa, maxStates));
+	}
+
+	// Returns the number of states of the DFA, or of those the calling thread built so far if it was too large to
+	// compile ahead of time.
+	public int getStateCount()
+	{
+		return this.table.isPresent() ? this.table.get().getStateCount() : this.lazyTables.get().getStateCount();
+	}
+
+	public boolean isCompiledAheadOfTime()
+	{
+		return this.table.isPresent();
+	}
+
+	// Returns the number of matching lines passed to the handler.
+	public long search(final Path file, final LineHandler handler) throws IOException
+	{
+		Preconditions.checkNotNull(handler, "Missing 'handler'.");
+		return scan(file, handler);
+	}
+
+	public long count(final Path file) throws IOException
+	{
+		return scan(file, null);
+	}
+
+	public boolean matches(final Path file) throws IOException
+	{
+		return scan(file, FIRST_LINE) > 0;
+	}
+
+	// Counts the matching lines, passing them to the handler unless it is null.
+	private long scan(final Path file, final LineHandler handler) throws IOException
+	{
+		try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			final long size = channel.size();
+			final Table table = this.table.isPresent() ? this.table.get() : this.lazyTables.get();
+			final boolean startAccepting = table.accepting[0];
+			long count = 0;
+			long lineNumber = 1;
+			long lineStart = 0;
+			int state = 0;
+			boolean matched = startAccepting;
+			for (long windowStart = 0; windowStart < size; windowStart += WINDOW_SIZE)
+			{
+				final int windowSize = (int) Math.min(WINDOW_SIZE, size - windowStart);
+				final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+				for (int i = 0; i < windowSize; i++)
+				{
+					final int b = window.get(i) & 0xFF;
+					if (b == '\n')
+					{
+						if (matched)
+						{
+							count++;
+							if (handler != null
+									&& !handler.onLine(
+											lineNumber,
+											lineStart,
+											line(channel, window, windowStart, lineStart, windowStart + i)))
+							{
+								return count;
+							}
+						}
+						lineNumber++;
+						lineStart = windowStart + i + 1;
+						state = 0;
+						matched = startAccepting;
+					}
+					else if (!matched)
+					{
+						final int nextState = table.transitions[state << 8 | b];
+						state = nextState >= 0 ? nextState : table.step(state, b);
+						matched = table.accepting[state];
+					}
+				}
+				// The last line of the file need not end in '\n'.
+				if (windowStart + windowSize == size && lineStart < size && matched)
+				{
+					count++;
+					if (handler != null)
+					{
+						handler.onLine(lineNumber, lineStart, line(channel, window, windowStart, lineStart, size));
+					}
+				}
+			}
+			return count;
+		}
+	}
+
+	// Returns the bytes of [start, end) from the window, or reads them when the line started in an earlier window.
+	private static final ByteBuffer line(
+			final FileChannel channel,
+			final MappedByteBuffer window,
+			final long windowStart,
+			final long start,
+			final long end) throws IOException
+	{
+		if (start >= windowStart)
+		{
+			final ByteBuffer line = window.duplicate();
+			line.limit((int) (end - windowStart));
+			line.position((int) (start - windowStart));
+			return line.slice();
+		}
+		Preconditions.checkState(end - start <= Integer.MAX_VALUE, "Line at offset " + start + " is too long.");
+		final ByteBuffer line = ByteBuffer.allocate((int) (end - start));
+		while (line.hasRemaining())
+		{
+			if (channel.read(line, start + line.position()) == -1)
+			{
+				throw new IllegalStateException("File was truncated at offset " + (start + line.position()) + ".");
+			}
+		}
+		line.flip();
+		return line;
+	}
+}
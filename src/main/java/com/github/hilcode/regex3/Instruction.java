@@ -15,8 +15,6 @@
  */
 package com.github.hilcode.regex3;
 
-import java.util.BitSet;
-
 public abstract class Instruction
 {
 	public enum Type
@@ -25,6 +23,8 @@ public abstract class Instruction
 		RANGE,
 		FORK,
 		JUMP,
+		SAVE,
+		REPEAT,
 		SUCCESS
 	}
 
@@ -46,17 +46,21 @@ public abstract class Instruction
 		extends
 			Instruction
 	{
-		public static final Success SUCCESS = new Success();
+		public static final Success SUCCESS = new Success(0);
+
+		// Identifies the pattern that matched when several programs are merged into one.
+		public final int id;
 
-		private Success()
+		public Success(final int id)
 		{
 			super(Type.SUCCESS);
+			this.id = id;
 		}
 
 		@Override
 		public String toString()
 		{
-			return "SUCCESS";
+			return this.id == 0 ? "SUCCESS" : "SUCCESS " + this.id;
 		}
 	}
 
@@ -95,24 +99,9 @@ public abstract class Instruction
 		public String toString()
 		{
 			final StringBuilder sb = new StringBuilder();
-			final BitSet codePoints_ = this.codePoints.value;
-			int lowerBoundCodePoint = codePoints_.nextSetBit(0);
-			int upperBoundCodePoint = lowerBoundCodePoint;
-			while (true)
+			for (int range = 0; range < this.codePoints.rangeCount(); range++)
 			{
-				final int codePoint = codePoints_.nextSetBit(upperBoundCodePoint + 1);
-				if (upperBoundCodePoint + 1 == codePoint)
-				{
-					upperBoundCodePoint++;
-					continue;
-				}
-				appendRange(sb, lowerBoundCodePoint, upperBoundCodePoint);
-				if (codePoint == -1)
-				{
-					break;
-				}
-				lowerBoundCodePoint = codePoint;
-				upperBoundCodePoint = codePoint;
+				appendRange(sb, this.codePoints.lowerBound(range), this.codePoints.upperBound(range));
 			}
 			return "RANGE " + sb;
 		}
@@ -176,4 +165,61 @@ public abstract class Instruction
 			return this.offset > 0 ? "FORK +" + this.offset : "FORK " + this.offset;
 		}
 	}
+
+	// Records the current offset in a capture slot; group n uses slots 2n and 2n + 1.
+	public static final class Save
+		extends
+			Instruction
+	{
+		public final int slot;
+
+		public Save(final int slot)
+		{
+			super(Type.SAVE);
+			this.slot = slot;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "SAVE " + this.slot;
+		}
+	}
+
+	// Consumes between min and max code points from codePoints. Engines give each count its own program counter,
+	// see Counters, so the program does not grow with the bounds.
+	public static final class Repeat
+		extends
+			Instruction
+	{
+		public final CodePoints codePoints;
+
+		public final int min;
+
+		public final int max;
+
+		public Repeat(final CodePoints codePoints, final int min, final int max)
+		{
+			super(Type.REPEAT);
+			this.codePoints = codePoints;
+			this.min = min;
+			this.max = max;
+		}
+
+		public boolean matches(final int codePoint)
+		{
+			return codePoint != -1 && this.codePoints.contains(codePoint);
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder sb = new StringBuilder();
+			for (int range = 0; range < this.codePoints.rangeCount(); range++)
+			{
+				Range.appendRange(sb, this.codePoints.lowerBound(range), this.codePoints.upperBound(range));
+			}
+			return "REPEAT {" + this.min + "," + this.max + "} " + sb;
+		}
+	}
 }
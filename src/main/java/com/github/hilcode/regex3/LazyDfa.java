@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+public final class LazyDfa
+	implements
+		Executor
+{
+	public static final int DEFAULT_MAX_STATES = 10_000;
+
+	private final Nfa nfa;
+
+	private final CodePointClasses classes;
+
+	private final ThreadLocal<Regex.VirtualMachine> virtualMachines;
+
+	private final StateCache<Void> states;
+
+	public LazyDfa(final ImmutableList<Instruction> program)
+	{
+		this(program, DEFAULT_MAX_STATES);
+	}
+
+	public LazyDfa(final ImmutableList<Instruction> program, final int maxStates)
+	{
+		Preconditions.checkArgument(maxStates > 1, "Invalid 'maxStates': " + maxStates + ".");
+		this.nfa = new Nfa(program);
+		this.classes = CodePointClasses.of(program);
+		this.virtualMachines = new ThreadLocal<Regex.VirtualMachine>()
+		{
+			@Override
+			protected Regex.VirtualMachine initialValue()
+			{
+				return new Regex.VirtualMachine(program);
+			}
+		};
+		this.states = new StateCache<>(
+				this.nfa,
+				this.nfa.start(),
+				programCounters -> null,
+				this.classes.size(),
+				maxStates);
+	}
+
+	public int getStateCount()
+	{
+		return this.states.getStateCount();
+	}
+
+	public int getMaxStates()
+	{
+		return this.states.getMaxStates();
+	}
+
+	@Override
+	public String getName()
+	{
+		return "lazy-dfa";
+	}
+
+	@Override
+	public int longestMatch(final Regex.CodePointSource source)
+	{
+		StateCache<Void>.Generation generation = this.states.get();
+		StateCache.State<Void> state = generation.initial;
+		int length = 0;
+		int longestMatchLength = -1;
+		long codePoints = 0;
+		while (true)
+		{
+			if (state.accepting)
+			{
+				longestMatchLength = length;
+			}
+			if (state.dead)
+			{
+				break;
+			}
+			final int codePoint = source.nextCodePoint();
+			if (codePoint == Regex.CodePointSource.EOF)
+			{
+				break;
+			}
+			length += Character.charCount(codePoint);
+			codePoints++;
+			final int classId = this.classes.classOf(codePoint);
+			StateCache.State<Void> nextState = state.transitions[classId];
+			if (nextState == null)
+			{
+				final int[] nextProgramCounters = this.nfa.step(state.programCounters, this.classes.representative(classId));
+				nextState = generation.add(state, classId, nextProgramCounters);
+				if (nextState == null)
+				{
+					if (generation.isThrashing(codePoints))
+					{
+						return this.virtualMachines
+								.get()
+								.run(source, nextProgramCounters, length, longestMatchLength);
+					}
+					generation = this.states.reset(generation);
+					codePoints = 0;
+					nextState = generation.intern(nextProgramCounters);
+				}
+			}
+			state = nextState;
+		}
+		generation.addCodePoints(codePoints);
+		return longestMatchLength;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import com.google.common.base.Preconditions;
+
+// Boyer-Moore-Horspool over UTF-16; Strings use String.indexOf, which HotSpot compiles to vectorized code.
+public final class LiteralSearcher
+	implements
+		Prefilter
+{
+	private static final int SHIFT_TABLE_SIZE = 0x100;
+
+	public final String literal;
+
+	private final int[] shifts;
+
+	public LiteralSearcher(final String literal)
+	{
+		Preconditions.checkNotNull(literal, "Missing 'literal'.");
+		Preconditions.checkArgument(!literal.isEmpty(), "Empty literal.");
+		this.literal = literal;
+		this.shifts = new int[SHIFT_TABLE_SIZE];
+		final int last = literal.length() - 1;
+		for (int i = 0; i < SHIFT_TABLE_SIZE; i++)
+		{
+			this.shifts[i] = literal.length();
+		}
+		// Characters sharing a table slot get the smallest shift of any of them, which is always safe.
+		for (int i = 0; i < last; i++)
+		{
+			this.shifts[literal.charAt(i) & SHIFT_TABLE_SIZE - 1] = last - i;
+		}
+	}
+
+	@Override
+	public int indexOf(final CharSequence text, final int fromIndex)
+	{
+		if (text instanceof String)
+		{
+			return ((String) text).indexOf(this.literal, fromIndex);
+		}
+		final int length = this.literal.length();
+		final int last = length - 1;
+		final char lastChar = this.literal.charAt(last);
+		int index = Math.max(fromIndex, 0);
+		final int end = text.length() - length;
+		while (index <= end)
+		{
+			final char ch = text.charAt(index + last);
+			if (ch == lastChar && regionMatches(text, index, last))
+			{
+				return index;
+			}
+			index += this.shifts[ch & SHIFT_TABLE_SIZE - 1];
+		}
+		return -1;
+	}
+
+	private boolean regionMatches(final CharSequence text, final int index, final int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (text.charAt(index + i) != this.literal.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.List;
+import java.util.SortedSet;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public final class Literals
+{
+	public static final int MAX_PREFIX_LENGTH = 256;
+
+	public static final int MAX_PREFIXES = 100_000;
+
+	// Bounds the work of finding the prefixes, which loops can spend on long prefixes that are never complete.
+	public static final int MAX_PREFIX_STEPS = 4 * MAX_PREFIXES;
+
+	public static final class PrefixSet
+	{
+		public final ImmutableList<String> prefixes;
+
+		// Whether the prefixes are exactly the texts the program matches.
+		public final boolean complete;
+
+		public PrefixSet(final ImmutableList<String> prefixes, final boolean complete)
+		{
+			this.prefixes = prefixes;
+			this.complete = complete;
+		}
+	}
+
+	// The longest text every match starts with: follows the program while exactly one code point can be consumed.
+	public static final String prefix(final ImmutableList<Instruction> program)
+	{
+		final Nfa nfa = new Nfa(program);
+		final StringBuilder prefix = new StringBuilder();
+		int[] programCounters = nfa.start();
+		while (prefix.length() < MAX_PREFIX_LENGTH && !nfa.isAccepting(programCounters))
+		{
+			final int codePoint = forcedCodePoint(nfa, programCounters);
+			if (codePoint == -1)
+			{
+				break;
+			}
+			prefix.appendCodePoint(codePoint);
+			programCounters = nfa.step(programCounters, codePoint);
+		}
+		return prefix.toString();
+	}
+
+	// Texts one of which every match starts with; absent when some match can start with anything.
+	public static final Optional<PrefixSet> prefixes(final ImmutableList<Instruction> program)
+	{
+		final Nfa nfa = new Nfa(program);
+		final List<String> prefixes = Lists.newArrayList();
+		final boolean[] complete = { true };
+		// The number of prefixes and of steps taken.
+		final int[] count = { 0, 0 };
+		if (!addPrefixes(nfa, nfa.start(), new StringBuilder(), prefixes, complete, count, false))
+		{
+			return Optional.absent();
+		}
+		return Optional.of(new PrefixSet(ImmutableList.copyOf(prefixes), complete[0]));
+	}
+
+	// Adds the prefixes that start with prefix. Returns false if there are too many of them, if finding them takes too
+	// many steps or, when speculative, as soon as they turn out not to be complete.
+	private static final boolean addPrefixes(
+			final Nfa nfa,
+			final int[] programCounters,
+			final StringBuilder prefix,
+			final List<String> prefixes,
+			final boolean[] complete,
+			final int[] count,
+			final boolean speculative)
+	{
+		final boolean accepting = nfa.isAccepting(programCounters);
+		if (!accepting && nfa.isDead(programCounters))
+		{
+			return true;
+		}
+		final SortedSet<Integer> codePoints = Sets.newTreeSet();
+		final boolean extensible = prefix.length() < MAX_PREFIX_LENGTH
+				&& collectCodePoints(nfa, programCounters, codePoints);
+		if (!accepting && extensible)
+		{
+			return addLongerPrefixes(nfa, programCounters, codePoints, prefix, prefixes, complete, count, speculative);
+		}
+		if (prefix.length() == 0 || ++count[0] > MAX_PREFIXES || !accepting && speculative)
+		{
+			return false;
+		}
+		prefixes.add(prefix.toString());
+		if (!accepting)
+		{
+			complete[0] = false;
+		}
+		else if (!nfa.isDead(programCounters))
+		{
+			// A literal that is the prefix of longer ones: they are only added if the set stays complete, since
+			// longestMatchAt finds the longest literal, and are otherwise left to the match executor.
+			final int size = prefixes.size();
+			final int previousCount = count[0];
+			if (!extensible
+					|| !addLongerPrefixes(nfa, programCounters, codePoints, prefix, prefixes, complete, count, true))
+			{
+				if (speculative)
+				{
+					return false;
+				}
+				prefixes.subList(size, prefixes.size()).clear();
+				count[0] = previousCount;
+				complete[0] = false;
+			}
+		}
+		return true;
+	}
+
+	private static final boolean addLongerPrefixes(
+			final Nfa nfa,
+			final int[] programCounters,
+			final SortedSet<Integer> codePoints,
+			final StringBuilder prefix,
+			final List<String> prefixes,
+			final boolean[] complete,
+			final int[] count,
+			final boolean speculative)
+	{
+		final int length = prefix.length();
+		for (final Integer codePoint : codePoints)
+		{
+			if (++count[1] > MAX_PREFIX_STEPS)
+			{
+				return false;
+			}
+			prefix.appendCodePoint(codePoint.intValue());
+			final int[] nextProgramCounters = nfa.step(programCounters, codePoint.intValue());
+			final boolean added =
+					addPrefixes(nfa, nextProgramCounters, prefix, prefixes, complete, count, speculative);
+			prefix.setLength(length);
+			if (!added)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Collects the code points the threads can consume, unless one of them consumes more than a single code point.
+	private static final boolean collectCodePoints(
+			final Nfa nfa,
+			final int[] programCounters,
+			final SortedSet<Integer> codePoints)
+	{
+		for (final int pc : programCounters)
+		{
+			final Instruction instruction = nfa.instruction(pc);
+			switch (instruction.type)
+			{
+				case SINGLE:
+				{
+					final Instruction.Single single = instruction.cast();
+					codePoints.add(Integer.valueOf(single.codePoint.value));
+					break;
+				}
+				case RANGE:
+				{
+					final Instruction.Range range = instruction.cast();
+					if (range.codePoints.size() != 1)
+					{
+						return false;
+					}
+					codePoints.add(Integer.valueOf(range.codePoints.lowerBound(0)));
+					break;
+				}
+				case REPEAT:
+				{
+					return false;
+				}
+				default:
+				{
+					break;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static final int forcedCodePoint(final Nfa nfa, final int[] programCounters)
+	{
+		int forcedCodePoint = -1;
+		for (final int pc : programCounters)
+		{
+			final Instruction instruction = nfa.instruction(pc);
+			final int codePoint;
+			switch (instruction.type)
+			{
+				case SINGLE:
+				{
+					final Instruction.Single single = instruction.cast();
+					codePoint = single.codePoint.value;
+					break;
+				}
+				case RANGE:
+				{
+					final Instruction.Range range = instruction.cast();
+					if (range.codePoints.size() != 1)
+					{
+						return -1;
+					}
+					codePoint = range.codePoints.lowerBound(0);
+					break;
+				}
+				case REPEAT:
+				{
+					final Instruction.Repeat repeat = instruction.cast();
+					if (repeat.codePoints.size() != 1)
+					{
+						return -1;
+					}
+					codePoint = repeat.codePoints.lowerBound(0);
+					break;
+				}
+				default:
+				{
+					return -1;
+				}
+			}
+			if (forcedCodePoint != -1 && forcedCodePoint != codePoint)
+			{
+				return -1;
+			}
+			forcedCodePoint = codePoint;
+		}
+		return forcedCodePoint;
+	}
+
+	private Literals()
+	{
+		// Empty.
+	}
+}
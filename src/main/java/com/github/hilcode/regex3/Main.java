@@ -15,113 +15,165 @@
  */
 package com.github.hilcode.regex3;
 
-import static com.github.hilcode.regex3.CodePoints.include;
-import static com.github.hilcode.regex3.Regex.codePoint;
-import static com.github.hilcode.regex3.Regex.concat;
-import static com.github.hilcode.regex3.Regex.firstOf;
-import static com.github.hilcode.regex3.Regex.optional;
-import static com.github.hilcode.regex3.Regex.text;
-import static com.github.hilcode.regex3.Regex.zeroOrMore;
-import java.util.Random;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import com.google.common.collect.Lists;
 
-public class Main
+// Usage: [-c | -l] PATTERN FILE...
+//
+// Prints the lines that contain a match as FILE:LINE:OFFSET:TEXT, where LINE counts from 1 and OFFSET is the byte
+// offset of the line; FILE is left out when there is a single file. With -c it prints the number of matching lines per
+// file instead, and with -l the names of the files that have one. Exits with 0 when some line matched, 1 when none did
+// and 2 on errors, like grep.
+public final class Main
 {
+	private enum Mode
+	{
+		LINES,
+		COUNT,
+		FILES_WITH_MATCHES
+	}
+
 	public static void main(final String[] args)
 	{
+		System.exit(run(args));
+	}
+
+	private static final int run(final String[] args)
+	{
+		Mode mode = Mode.LINES;
+		int index = 0;
+		for (; index < args.length && args[index].startsWith("-") && args[index].length() > 1; index++)
 		{
-			codePoint('a')
-					.build();
-		}
-		System.out.println("#####");
-		{
-			concat(
-					codePoint('a'),
-					codePoint('b'),
-					codePoint('c'))
-							.build();
-		}
-		System.out.println("#####");
-		{
-			text("x\uD835\uDD0Az")
-					.build();
-		}
-		System.out.println("#####");
-		{
-			text("")
-					.text("x\uD835\uDD0Az")
-					.codePoints(include('a', 'z').and('A', 'Z').and('0'))
-					.build();
+			if (args[index].equals("--"))
+			{
+				index++;
+				break;
+			}
+			else if (args[index].equals("-c"))
+			{
+				mode = Mode.COUNT;
+			}
+			else if (args[index].equals("-l"))
+			{
+				mode = Mode.FILES_WITH_MATCHES;
+			}
+			else
+			{
+				return usage("Unknown option '" + args[index] + "'.");
+			}
 		}
-		System.out.println("#####");
+		if (args.length - index < 2)
 		{
-			zeroOrMore(
-					codePoint('a'))
-							.build();
+			return usage("Missing pattern or files.");
 		}
-		System.out.println("#####");
+		final Grep grep;
+		try
 		{
-			firstOf(
-					text("xyz"),
-					codePoint('a'))
-							.build();
+			grep = Grep.compile(Parser.parse(args[index]));
 		}
-		System.out.println("#####");
+		catch (final IllegalArgumentException | IllegalStateException e)
 		{
-			zeroOrMore(
-					firstOf(
-							text("xyz"),
-							codePoint('a')))
-									.build();
+			System.err.println(e.getMessage());
+			return 2;
 		}
-		System.out.println("#####");
+		final List<Path> files = Lists.newArrayList();
+		for (int i = index + 1; i < args.length; i++)
 		{
-			final Regex regex = firstOf(
-					text("xyz"),
-					codePoint('a'),
-					text("bc"),
-					text("cde"),
-					text("1234"),
-					text("%^&&***"))
-							.build();
-			System.out.println(regex.match("bc"));
-			System.out.println(regex.generate(new Random()));
+			files.add(Paths.get(args[i]));
 		}
-		System.out.println("#####");
+		final boolean withFileNames = files.size() > 1;
+		boolean matched = false;
+		boolean failed = false;
+		try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16))
 		{
-			zeroOrMore(
-					concat(
-							optional(
-									firstOf(
-											text("xyz"),
-											codePoint('a'))),
-							firstOf(
-									text("xyz"),
-									codePoint('a'),
-									text("bc"),
-									text("cde"),
-									text("1234"),
-									text("%^&&***"))))
-											.build();
+			for (final Path file : files)
+			{
+				try
+				{
+					switch (mode)
+					{
+						case COUNT:
+						{
+							final long count = grep.count(file);
+							matched |= count > 0;
+							write(out, withFileNames ? file + ":" + count + "\n" : count + "\n");
+							break;
+						}
+						case FILES_WITH_MATCHES:
+						{
+							if (grep.matches(file))
+							{
+								matched = true;
+								write(out, file + "\n");
+							}
+							break;
+						}
+						case LINES:
+						default:
+						{
+							final String prefix = withFileNames ? file + ":" : "";
+							final byte[] buffer = new byte[1 << 16];
+							matched |= grep.search(file, (lineNumber, offset, line) ->
+							{
+								write(out, prefix + lineNumber + ":" + offset + ":");
+								write(out, line, buffer);
+								out.write('\n');
+								return true;
+							}) > 0;
+							break;
+						}
+					}
+				}
+				catch (final IOException e)
+				{
+					out.flush();
+					System.err.println(file + ": " + e);
+					failed = true;
+				}
+			}
 		}
-		System.out.println("#####");
+		catch (final IOException e)
 		{
-			final Regex regex = zeroOrMore(
-					concat(
-							text("xyz"),
-							codePoint('a')))
-									.build();
-			System.out.println(regex.match("xyzaxyza"));
+			System.err.println(e.getMessage());
+			return 2;
 		}
-		System.out.println("#####");
+		return failed ? 2 : matched ? 0 : 1;
+	}
+
+	private static final int usage(final String message)
+	{
+		System.err.println(message);
+		System.err.println("Usage: [-c | -l] PATTERN FILE...");
+		return 2;
+	}
+
+	private static final void write(final OutputStream out, final String text) throws IOException
+	{
+		out.write(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Writes the bytes of the line as they are, without decoding them.
+	private static final void write(final OutputStream out, final ByteBuffer line, final byte[] buffer) throws IOException
+	{
+		while (line.hasRemaining())
 		{
-			final Regex regex = zeroOrMore(
-					concat(
-							zeroOrMore(text("a")),
-							zeroOrMore(text("aa")),
-							zeroOrMore(text("aaa"))))
-									.build();
-			System.out.println(regex.match("aaaa"));
+			final int length = Math.min(line.remaining(), buffer.length);
+			line.get(buffer, 0, length);
+			out.write(buffer, 0, length);
 		}
-		System.out.println("#####");
+	}
+
+	private Main()
+	{
+		// Empty.
 	}
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+// A view of the matched part of the input; the text is only copied when toString() is called.
+public final class Match
+	implements
+		CharSequence
+{
+	private final CharSequence text;
+
+	public final int start;
+
+	public final int end;
+
+	// Start and end offsets of the match followed by those of each group, -1 for groups that did not participate.
+	private final int[] slots;
+
+	Match(final CharSequence text, final int start, final int end)
+	{
+		this(text, new int[] { start, end });
+	}
+
+	Match(final CharSequence text, final int[] slots)
+	{
+		Preconditions.checkNotNull(text, "Missing 'text'.");
+		Preconditions.checkPositionIndexes(slots[0], slots[1], text.length());
+		this.text = text;
+		this.start = slots[0];
+		this.end = slots[1];
+		this.slots = slots;
+	}
+
+	public int groupCount()
+	{
+		return this.slots.length / 2 - 1;
+	}
+
+	// Group 0 is the whole match.
+	public Optional<Match> group(final int group)
+	{
+		Preconditions.checkElementIndex(group, groupCount() + 1, "group");
+		final int start = this.slots[2 * group];
+		final int end = this.slots[2 * group + 1];
+		return start == -1 || end == -1 ? Optional.<Match> absent() : Optional.of(new Match(this.text, start, end));
+	}
+
+	@Override
+	public int length()
+	{
+		return this.end - this.start;
+	}
+
+	@Override
+	public char charAt(final int index)
+	{
+		Preconditions.checkElementIndex(index, length());
+		return this.text.charAt(this.start + index);
+	}
+
+	@Override
+	public CharSequence subSequence(final int start, final int end)
+	{
+		Preconditions.checkPositionIndexes(start, end, length());
+		return this.text.subSequence(this.start + start, this.start + end);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + System.identityHashCode(this.text);
+		result = prime * result + Arrays.hashCode(this.slots);
+		return result;
+	}
+
+	@Override
+	public boolean equals(final Object object)
+	{
+		if (this == object)
+		{
+			return true;
+		}
+		if (object == null || getClass() != object.getClass())
+		{
+			return false;
+		}
+		final Match other = (Match) object;
+		return this.text == other.text && Arrays.equals(this.slots, other.slots);
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.text.subSequence(this.start, this.end).toString();
+	}
+}
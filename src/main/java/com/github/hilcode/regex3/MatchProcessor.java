@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.base.Preconditions;
+
+// Subscribes to UTF-8 chunks and publishes the matches in them, with byte offsets, to a single subscriber. The chunks
+// are fed to a PushMatcher without copying, SLICE_SIZE bytes at a time, and consumed by it. Decoding and matching run
+// on the executor in a drain loop that at most one thread executes at a time, while upstream produces the next chunks:
+// a chunk is only requested while the subscriber wants more matches, at most PREFETCH ahead. A slice is only fed once
+// the matches of the previous one have been delivered, so that only the matches of one slice wait for demand, whatever
+// the size of the chunks.
+public final class MatchProcessor
+	implements
+		Flow.Processor<ByteBuffer, MatchProcessor.MatchEvent>
+{
+	public static final int PREFETCH = 2;
+
+	public static final int SLICE_SIZE = 1 << 12;
+
+	public static final class MatchEvent
+	{
+		public final long start;
+
+		public final long end;
+
+		public MatchEvent(final long start, final long end)
+		{
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode(this.start) * 31 + Long.hashCode(this.end);
+		}
+
+		@Override
+		public boolean equals(final Object object)
+		{
+			if (this == object)
+			{
+				return true;
+			}
+			if (object == null || getClass() != object.getClass())
+			{
+				return false;
+			}
+			final MatchEvent other = (MatchEvent) object;
+			return this.start == other.start && this.end == other.end;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "[" + this.start + ", " + this.end + ")";
+		}
+	}
+
+	private final java.util.concurrent.Executor executor;
+
+	// Only touched by the drain loop, like everything that is not volatile or atomic below.
+	private final PushMatcher matcher;
+
+	private final Queue<MatchEvent> events = new ArrayDeque<>();
+
+	private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+
+	private final AtomicLong requested = new AtomicLong();
+
+	private final AtomicInteger work = new AtomicInteger();
+
+	private volatile Flow.Subscription upstream;
+
+	private volatile Flow.Subscriber<? super MatchEvent> downstream;
+
+	private volatile boolean upstreamDone;
+
+	private volatile Throwable error;
+
+	private volatile boolean cancelled;
+
+	// The error for a request of a non-positive number of matches, which cancels the subscription.
+	private volatile Throwable invalidRequest;
+
+	private boolean subscribed;
+
+	// The chunk being fed to the matcher, if any.
+	private ByteBuffer chunk;
+
+	// Chunks requested from upstream and not yet being fed to the matcher.
+	private int inFlight;
+
+	private boolean finished;
+
+	private boolean terminated;
+
+	MatchProcessor(final Regex regex, final java.util.concurrent.Executor executor)
+	{
+		this.executor = executor;
+		this.matcher = regex.pushMatcher((start, end) -> this.events.add(new MatchEvent(start, end)));
+	}
+
+	@Override
+	public void subscribe(final Flow.Subscriber<? super MatchEvent> subscriber)
+	{
+		Preconditions.checkNotNull(subscriber, "Missing 'subscriber'.");
+		synchronized (this)
+		{
+			if (this.downstream == null)
+			{
+				this.downstream = subscriber;
+				schedule();
+				return;
+			}
+		}
+		subscriber.onSubscribe(new Flow.Subscription()
+		{
+			@Override
+			public void request(final long n)
+			{
+				// Empty.
+			}
+
+			@Override
+			public void cancel()
+			{
+				// Empty.
+			}
+		});
+		subscriber.onError(new IllegalStateException("Only one subscriber is supported."));
+	}
+
+	@Override
+	public void onSubscribe(final Flow.Subscription subscription)
+	{
+		Preconditions.checkNotNull(subscription, "Missing 'subscription'.");
+		if (this.upstream != null)
+		{
+			subscription.cancel();
+			return;
+		}
+		this.upstream = subscription;
+		schedule();
+	}
+
+	@Override
+	public void onNext(final ByteBuffer chunk)
+	{
+		Preconditions.checkNotNull(chunk, "Missing 'chunk'.");
+		this.chunks.add(chunk);
+		schedule();
+	}
+
+	@Override
+	public void onError(final Throwable throwable)
+	{
+		Preconditions.checkNotNull(throwable, "Missing 'throwable'.");
+		this.error = throwable;
+		this.upstreamDone = true;
+		schedule();
+	}
+
+	@Override
+	public void onComplete()
+	{
+		this.upstreamDone = true;
+		schedule();
+	}
+
+	private void schedule()
+	{
+		if (this.work.getAndIncrement() == 0)
+		{
+			this.executor.execute(this::drain);
+		}
+	}
+
+	private void drain()
+	{
+		int missed = 1;
+		while (true)
+		{
+			final Flow.Subscriber<? super MatchEvent> downstream = this.downstream;
+			if (downstream != null && !this.terminated)
+			{
+				try
+				{
+					drain(downstream);
+				}
+				catch (final RuntimeException e)
+				{
+					// The subscriber may also throw from onError or onComplete, after which there is nothing to do.
+					if (!this.terminated)
+					{
+						terminate(downstream, e);
+					}
+				}
+			}
+			missed = this.work.addAndGet(-missed);
+			if (missed == 0)
+			{
+				return;
+			}
+		}
+	}
+
+	private void drain(final Flow.Subscriber<? super MatchEvent> downstream)
+	{
+		if (!this.subscribed)
+		{
+			this.subscribed = true;
+			final Flow.Subscription subscription = new Flow.Subscription()
+			{
+				@Override
+				public void request(final long n)
+				{
+					if (n <= 0)
+					{
+						MatchProcessor.this.invalidRequest = new IllegalArgumentException("Invalid 'n': " + n + ".");
+						MatchProcessor.this.cancelled = true;
+					}
+					else
+					{
+						MatchProcessor.this.requested.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+					}
+					schedule();
+				}
+
+				@Override
+				public void cancel()
+				{
+					MatchProcessor.this.cancelled = true;
+					schedule();
+				}
+			};
+			try
+			{
+				downstream.onSubscribe(subscription);
+			}
+			catch (final RuntimeException e)
+			{
+				// A subscriber that throws is considered to have cancelled and is not signalled again (rule 2.13).
+				stop();
+				return;
+			}
+		}
+		while (!this.terminated)
+		{
+			if (this.cancelled)
+			{
+				terminate(downstream, this.invalidRequest);
+				return;
+			}
+			if (this.upstreamDone && this.error != null)
+			{
+				// Errors cut ahead of the matches that were not delivered yet.
+				terminate(downstream, this.error);
+				return;
+			}
+			if (!this.events.isEmpty())
+			{
+				if (this.requested.get() == 0)
+				{
+					return;
+				}
+				try
+				{
+					downstream.onNext(this.events.poll());
+				}
+				catch (final RuntimeException e)
+				{
+					stop();
+					return;
+				}
+				if (this.requested.get() != Long.MAX_VALUE)
+				{
+					this.requested.decrementAndGet();
+				}
+				continue;
+			}
+			if (this.chunk == null)
+			{
+				this.chunk = this.chunks.poll();
+				if (this.chunk != null)
+				{
+					this.inFlight--;
+					request();
+				}
+			}
+			if (this.chunk != null)
+			{
+				final ByteBuffer slice = this.chunk.duplicate();
+				slice.limit(this.chunk.position() + Math.min(this.chunk.remaining(), SLICE_SIZE));
+				this.matcher.feed(slice);
+				this.chunk.position(slice.limit());
+				if (!this.chunk.hasRemaining())
+				{
+					this.chunk = null;
+				}
+				continue;
+			}
+			if (this.upstreamDone)
+			{
+				if (!this.finished)
+				{
+					this.finished = true;
+					this.matcher.finish();
+					continue;
+				}
+				terminate(downstream, null);
+				return;
+			}
+			request();
+			return;
+		}
+	}
+
+	// Tops up the chunks requested from upstream while the subscriber wants more matches.
+	private void request()
+	{
+		final Flow.Subscription upstream = this.upstream;
+		if (upstream != null && !this.upstreamDone && this.requested.get() > 0 && this.inFlight < PREFETCH)
+		{
+			final int n = PREFETCH - Math.max(this.inFlight, 0);
+			this.inFlight += n;
+			upstream.request(n);
+		}
+	}
+
+	// Stops matching and cancels upstream when it is not done.
+	private void stop()
+	{
+		this.terminated = true;
+		this.events.clear();
+		this.chunks.clear();
+		this.chunk = null;
+		final Flow.Subscription upstream = this.upstream;
+		if (!this.upstreamDone && upstream != null)
+		{
+			upstream.cancel();
+		}
+	}
+
+	// Stops, then signals completion, or the error unless it is null.
+	private void terminate(final Flow.Subscriber<? super MatchEvent> downstream, final Throwable error)
+	{
+		stop();
+		if (error != null)
+		{
+			downstream.onError(error);
+		}
+		else if (!this.cancelled)
+		{
+			downstream.onComplete();
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import com.google.common.collect.ImmutableList;
+
+public final class Nfa
+{
+	public final ImmutableList<Instruction> program;
+
+	public final Counters counters;
+
+	private final ThreadLocal<Scratch> scratch;
+
+	public Nfa(final ImmutableList<Instruction> program)
+	{
+		this.program = program;
+		this.counters = new Counters(program);
+		final int size = this.counters.size();
+		this.scratch = new ThreadLocal<Scratch>()
+		{
+			@Override
+			protected Scratch initialValue()
+			{
+				return new Scratch(size);
+			}
+		};
+	}
+
+	public int[] start()
+	{
+		return closure(new int[] { 0 }, 1);
+	}
+
+	public int[] step(final int[] programCounters, final int codePoint)
+	{
+		final int[] nextProgramCounters = new int[programCounters.length];
+		int size = 0;
+		for (final int pc : programCounters)
+		{
+			if (matches(pc, codePoint))
+			{
+				nextProgramCounters[size++] = this.counters.next(pc);
+			}
+		}
+		return closure(nextProgramCounters, size);
+	}
+
+	// The instruction executed at pc, which may be the program counter of a counter state.
+	public Instruction instruction(final int pc)
+	{
+		return this.counters.instruction(pc);
+	}
+
+	public boolean matches(final int pc, final int codePoint)
+	{
+		final Instruction instruction = this.counters.instruction(pc);
+		switch (instruction.type)
+		{
+			case SINGLE:
+			{
+				final Instruction.Single single = instruction.cast();
+				return single.codePoint.value == codePoint;
+			}
+			case RANGE:
+			{
+				final Instruction.Range range = instruction.cast();
+				return range.codePoints.contains(codePoint);
+			}
+			case REPEAT:
+			{
+				final Instruction.Repeat repeat = instruction.cast();
+				return repeat.matches(codePoint);
+			}
+			default:
+			{
+				return false;
+			}
+		}
+	}
+
+	public boolean isAccepting(final int[] programCounters)
+	{
+		for (final int pc : programCounters)
+		{
+			if (this.counters.instruction(pc).type == Instruction.Type.SUCCESS)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isDead(final int[] programCounters)
+	{
+		for (final int pc : programCounters)
+		{
+			if (this.counters.instruction(pc).type != Instruction.Type.SUCCESS)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Follows FORK, JUMP and SAVE, and REPEAT once it may stop, from the given program counters and returns the sorted
+	// instructions reached. A REPEAT is only part of the result while it may consume another code point.
+	private int[] closure(final int[] programCounters, final int size)
+	{
+		final Scratch scratch = this.scratch.get();
+		final SparseSet visited = scratch.visited;
+		final int[] stack = scratch.stack;
+		final int[] closure = scratch.closure;
+		visited.clear();
+		int stackSize = 0;
+		int closureSize = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (visited.add(programCounters[i]))
+			{
+				stack[stackSize++] = programCounters[i];
+			}
+		}
+		while (stackSize > 0)
+		{
+			final int pc = stack[--stackSize];
+			final Instruction instruction = this.counters.instruction(pc);
+			switch (instruction.type)
+			{
+				case FORK:
+				{
+					final Instruction.Fork fork = instruction.cast();
+					if (visited.add(pc + fork.offset))
+					{
+						stack[stackSize++] = pc + fork.offset;
+					}
+					if (visited.add(pc + 1))
+					{
+						stack[stackSize++] = pc + 1;
+					}
+					break;
+				}
+				case JUMP:
+				{
+					final Instruction.Jump jump = instruction.cast();
+					if (visited.add(pc + jump.offset))
+					{
+						stack[stackSize++] = pc + jump.offset;
+					}
+					break;
+				}
+				case SAVE:
+				{
+					if (visited.add(pc + 1))
+					{
+						stack[stackSize++] = pc + 1;
+					}
+					break;
+				}
+				case REPEAT:
+				{
+					final Instruction.Repeat repeat = instruction.cast();
+					final int count = this.counters.count(pc);
+					if (count >= repeat.min && visited.add(this.counters.exit(pc)))
+					{
+						stack[stackSize++] = this.counters.exit(pc);
+					}
+					if (count < repeat.max)
+					{
+						closure[closureSize++] = pc;
+					}
+					break;
+				}
+				default:
+				{
+					closure[closureSize++] = pc;
+					break;
+				}
+			}
+		}
+		final int[] result = Arrays.copyOf(closure, closureSize);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private static final class Scratch
+	{
+		public final SparseSet visited;
+
+		public final int[] stack;
+
+		public final int[] closure;
+
+		public Scratch(final int size)
+		{
+			this.visited = new SparseSet(size);
+			this.stack = new int[size];
+			this.closure = new int[size];
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import java.util.List;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+
+// Executes programs in which the next code point always determines the instruction that consumes it and the SAVE
+// instructions on the way there, so that a single thread with a single set of capture slots suffices.
+public final class OnePass
+	implements
+		CaptureExecutor
+{
+	public static final int MAX_TABLE_SIZE = 1 << 22;
+
+	public static final Optional<OnePass> compile(final ImmutableList<Instruction> program)
+	{
+		final CodePointClasses classes = CodePointClasses.of(program);
+		final int[] stateOf = new int[program.size() + 1];
+		Arrays.fill(stateOf, -1);
+		final int[] statePcs = new int[program.size() + 1];
+		int stateCount = 0;
+		stateOf[0] = stateCount;
+		statePcs[stateCount++] = 0;
+		for (int pc = 0; pc < program.size(); pc++)
+		{
+			final Instruction.Type type = program.get(pc).type;
+			if (type == Instruction.Type.REPEAT)
+			{
+				// Counter states are not program counters of the table.
+				return Optional.absent();
+			}
+			if ((type == Instruction.Type.SINGLE || type == Instruction.Type.RANGE) && stateOf[pc + 1] == -1)
+			{
+				stateOf[pc + 1] = stateCount;
+				statePcs[stateCount++] = pc + 1;
+			}
+		}
+		if ((long) stateCount * classes.size() > MAX_TABLE_SIZE)
+		{
+			return Optional.absent();
+		}
+		final Analysis analysis = new Analysis(program, classes, stateOf, stateCount);
+		for (int state = 0; state < stateCount; state++)
+		{
+			analysis.visited.clear();
+			if (!analysis.explore(state, statePcs[state], 0))
+			{
+				return Optional.absent();
+			}
+		}
+		return Optional.of(new OnePass(program, classes, analysis));
+	}
+
+	private final CodePointClasses classes;
+
+	private final int classCount;
+
+	private final int slotCount;
+
+	private final int[] transitions;
+
+	private final int[] actionTargets;
+
+	private final int[][] actionSaves;
+
+	private final boolean[] accepting;
+
+	private final int[][] acceptingSaves;
+
+	private OnePass(final ImmutableList<Instruction> program, final CodePointClasses classes, final Analysis analysis)
+	{
+		this.classes = classes;
+		this.classCount = classes.size();
+		int slotCount = 2;
+		for (final Instruction instruction : program)
+		{
+			if (instruction.type == Instruction.Type.SAVE)
+			{
+				final Instruction.Save save = instruction.cast();
+				slotCount = Math.max(slotCount, save.slot + 1);
+			}
+		}
+		this.slotCount = slotCount;
+		this.transitions = analysis.transitions;
+		this.actionTargets = Ints.toArray(analysis.actionTargets);
+		this.actionSaves = analysis.actionSaves.toArray(new int[analysis.actionSaves.size()][]);
+		this.accepting = analysis.accepting;
+		this.acceptingSaves = analysis.acceptingSaves;
+	}
+
+	public int getStateCount()
+	{
+		return this.accepting.length;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "one-pass";
+	}
+
+	@Override
+	public int longestMatch(final Regex.CodePointSource source)
+	{
+		int state = 0;
+		int length = 0;
+		int longestMatchLength = -1;
+		while (true)
+		{
+			if (this.accepting[state])
+			{
+				longestMatchLength = length;
+			}
+			final int codePoint = source.nextCodePoint();
+			if (codePoint == Regex.CodePointSource.EOF)
+			{
+				return longestMatchLength;
+			}
+			final int action = this.transitions[state * this.classCount + this.classes.classOf(codePoint)];
+			if (action == -1)
+			{
+				return longestMatchLength;
+			}
+			length += Character.charCount(codePoint);
+			state = this.actionTargets[action];
+		}
+	}
+
+	@Override
+	public int[] capture(final CharSequence text, final int offset, final int end)
+	{
+		final Regex.CodePointSource source = new CodePointSources.CharSequenceSource(text, offset, end);
+		final int[] slots = new int[this.slotCount];
+		Arrays.fill(slots, -1);
+		int[] match = null;
+		int state = 0;
+		int position = offset;
+		while (true)
+		{
+			if (this.accepting[state])
+			{
+				if (match == null)
+				{
+					match = new int[this.slotCount];
+				}
+				System.arraycopy(slots, 0, match, 0, this.slotCount);
+				for (final int slot : this.acceptingSaves[state])
+				{
+					match[slot] = position;
+				}
+				match[0] = offset;
+				match[1] = position;
+			}
+			final int codePoint = source.nextCodePoint();
+			if (codePoint == Regex.CodePointSource.EOF)
+			{
+				return match;
+			}
+			final int action = this.transitions[state * this.classCount + this.classes.classOf(codePoint)];
+			if (action == -1)
+			{
+				return match;
+			}
+			for (final int slot : this.actionSaves[action])
+			{
+				slots[slot] = position;
+			}
+			position += Character.charCount(codePoint);
+			state = this.actionTargets[action];
+		}
+	}
+
+	private static final class Analysis
+	{
+		private final ImmutableList<Instruction> program;
+
+		private final CodePointClasses classes;
+
+		private final int[] stateOf;
+
+		private final SparseSet visited;
+
+		private final int[] path;
+
+		public final int[] transitions;
+
+		public final List<Integer> actionTargets = Lists.newArrayList();
+
+		public final List<int[]> actionSaves = Lists.newArrayList();
+
+		public final boolean[] accepting;
+
+		public final int[][] acceptingSaves;
+
+		public Analysis(
+				final ImmutableList<Instruction> program,
+				final CodePointClasses classes,
+				final int[] stateOf,
+				final int stateCount)
+		{
+			this.program = program;
+			this.classes = classes;
+			this.stateOf = stateOf;
+			this.visited = new SparseSet(program.size());
+			this.path = new int[program.size()];
+			this.transitions = new int[stateCount * classes.size()];
+			Arrays.fill(this.transitions, -1);
+			this.accepting = new boolean[stateCount];
+			this.acceptingSaves = new int[stateCount][];
+		}
+
+		// Follows every path from pc up to the instructions that consume a code point. Fails when two paths meet or
+		// both accept, since they might disagree on the capture slots, or when two consuming instructions overlap.
+		public boolean explore(final int state, final int pc, final int pathSize)
+		{
+			if (!this.visited.add(pc))
+			{
+				return false;
+			}
+			final Instruction instruction = this.program.get(pc);
+			switch (instruction.type)
+			{
+				case FORK:
+				{
+					final Instruction.Fork fork = instruction.cast();
+					return explore(state, pc + 1, pathSize) && explore(state, pc + fork.offset, pathSize);
+				}
+				case JUMP:
+				{
+					final Instruction.Jump jump = instruction.cast();
+					return explore(state, pc + jump.offset, pathSize);
+				}
+				case SAVE:
+				{
+					final Instruction.Save save = instruction.cast();
+					this.path[pathSize] = save.slot;
+					return explore(state, pc + 1, pathSize + 1);
+				}
+				case SUCCESS:
+				{
+					if (this.accepting[state])
+					{
+						return false;
+					}
+					this.accepting[state] = true;
+					this.acceptingSaves[state] = Arrays.copyOf(this.path, pathSize);
+					return true;
+				}
+				default:
+				{
+					final int action = this.actionTargets.size();
+					this.actionTargets.add(Integer.valueOf(this.stateOf[pc + 1]));
+					this.actionSaves.add(Arrays.copyOf(this.path, pathSize));
+					if (instruction.type == Instruction.Type.SINGLE)
+					{
+						final Instruction.Single single = instruction.cast();
+						final int classId = this.classes.classOf(single.codePoint.value);
+						return addTransition(state, classId, classId, action);
+					}
+					final Instruction.Range range = instruction.cast();
+					for (int i = 0; i < range.codePoints.rangeCount(); i++)
+					{
+						final int lowerClassId = this.classes.classOf(range.codePoints.lowerBound(i));
+						final int upperClassId = this.classes.classOf(range.codePoints.upperBound(i));
+						if (!addTransition(state, lowerClassId, upperClassId, action))
+						{
+							return false;
+						}
+					}
+					return true;
+				}
+			}
+		}
+
+		private boolean addTransition(final int state, final int lowerClassId, final int upperClassId, final int action)
+		{
+			for (int classId = lowerClassId; classId <= upperClassId; classId++)
+			{
+				final int index = state * this.classes.size() + classId;
+				if (this.transitions[index] != -1)
+				{
+					return false;
+				}
+				this.transitions[index] = action;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+
+// A peephole pass over the code emitted by Regex.Builder: jumps are threaded to their final destination, forks whose
+// branches end up in the same place become jumps, and jumps to the next instruction and unreachable instructions are
+// removed.
+public final class Optimizer
+{
+	public static final ImmutableList<Instruction> optimize(final List<Instruction> program)
+	{
+		final int size = program.size();
+		final Instruction[] instructions = program.toArray(new Instruction[size]);
+		// Absolute targets of the FORK and JUMP instructions.
+		final int[] targets = new int[size];
+		for (int pc = 0; pc < size; pc++)
+		{
+			final Instruction instruction = instructions[pc];
+			if (instruction.type == Instruction.Type.FORK)
+			{
+				final Instruction.Fork fork = instruction.cast();
+				targets[pc] = pc + fork.offset;
+			}
+			else if (instruction.type == Instruction.Type.JUMP)
+			{
+				final Instruction.Jump jump = instruction.cast();
+				targets[pc] = pc + jump.offset;
+			}
+		}
+		for (int pc = 0; pc < size; pc++)
+		{
+			final Instruction instruction = instructions[pc];
+			if (instruction.type == Instruction.Type.JUMP || instruction.type == Instruction.Type.FORK)
+			{
+				final int target = resolve(instructions, targets, targets[pc]);
+				final boolean redundantFork = instruction.type == Instruction.Type.FORK
+						&& resolve(instructions, targets, pc + 1) == target;
+				if (instruction.type == Instruction.Type.JUMP || redundantFork)
+				{
+					if (instructions[target].type == Instruction.Type.SUCCESS)
+					{
+						instructions[pc] = instructions[target];
+					}
+					else
+					{
+						instructions[pc] = new Instruction.Jump(target - pc);
+					}
+				}
+				targets[pc] = target;
+			}
+		}
+		final boolean[] kept = findReachable(instructions, targets);
+		// Maps every program counter to that of the first instruction at or after it that is kept.
+		final int[] programCounters = new int[size + 1];
+		programCounters[size] = size;
+		for (int pc = size - 1; pc >= 0; pc--)
+		{
+			if (kept[pc] && instructions[pc].type == Instruction.Type.JUMP && targets[pc] > pc
+					&& programCounters[targets[pc]] == programCounters[pc + 1])
+			{
+				kept[pc] = false;
+			}
+			programCounters[pc] = kept[pc] ? pc : programCounters[pc + 1];
+		}
+		final int[] newProgramCounters = new int[size + 1];
+		int newSize = 0;
+		for (int pc = 0; pc <= size; pc++)
+		{
+			newProgramCounters[pc] = newSize;
+			if (pc < size && kept[pc])
+			{
+				newSize++;
+			}
+		}
+		final ImmutableList.Builder<Instruction> optimizedProgram = ImmutableList.builder();
+		for (int pc = 0; pc < size; pc++)
+		{
+			if (!kept[pc])
+			{
+				continue;
+			}
+			final Instruction instruction = instructions[pc];
+			final int offset = newProgramCounters[programCounters[targets[pc]]] - newProgramCounters[pc];
+			switch (instruction.type)
+			{
+				case FORK:
+				{
+					optimizedProgram.add(new Instruction.Fork(offset));
+					break;
+				}
+				case JUMP:
+				{
+					optimizedProgram.add(new Instruction.Jump(offset));
+					break;
+				}
+				default:
+				{
+					optimizedProgram.add(instruction);
+					break;
+				}
+			}
+		}
+		return optimizedProgram.build();
+	}
+
+	// Follows JUMP instructions from pc; a cycle of jumps resolves to where it was entered.
+	private static final int resolve(final Instruction[] instructions, final int[] targets, final int pc)
+	{
+		int target = pc;
+		for (int steps = 0; steps < instructions.length && instructions[target].type == Instruction.Type.JUMP; steps++)
+		{
+			target = targets[target];
+		}
+		return instructions[target].type == Instruction.Type.JUMP ? pc : target;
+	}
+
+	private static final boolean[] findReachable(final Instruction[] instructions, final int[] targets)
+	{
+		final boolean[] reachable = new boolean[instructions.length];
+		final int[] stack = new int[instructions.length];
+		int stackSize = 0;
+		reachable[0] = true;
+		stack[stackSize++] = 0;
+		while (stackSize > 0)
+		{
+			final int pc = stack[--stackSize];
+			final Instruction.Type type = instructions[pc].type;
+			if (type == Instruction.Type.FORK || type == Instruction.Type.JUMP)
+			{
+				final int target = targets[pc];
+				if (!reachable[target])
+				{
+					reachable[target] = true;
+					stack[stackSize++] = target;
+				}
+			}
+			if (type != Instruction.Type.JUMP && type != Instruction.Type.SUCCESS && !reachable[pc + 1])
+			{
+				reachable[pc + 1] = true;
+				stack[stackSize++] = pc + 1;
+			}
+		}
+		return reachable;
+	}
+
+	private Optimizer()
+	{
+		// Empty.
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.List;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+// Parses the usual pattern syntax into a builder: literals, escapes, '.', classes, groups, '|' and the greedy
+// quantifiers. Since matches are leftmost-longest there are no lazy quantifiers, and there are no anchors.
+public final class Parser
+{
+	private static final String METACHARACTERS = "\\.[]{}()*+?|^$";
+
+	private static final CodePoints DIGITS = CodePoints.include('0', '9').build();
+
+	private static final CodePoints WORD_CHARACTERS =
+			CodePoints.include('a', 'z').and('A', 'Z').and('0', '9').and('_').build();
+
+	private static final CodePoints WHITESPACE = CodePoints.include(' ').and('\t', '\r').build();
+
+	private static final CodePoints ANY_BUT_NEWLINE = CodePoints.include('\n').build().complement();
+
+	public static final Regex.Builder parse(final String pattern)
+	{
+		Preconditions.checkNotNull(pattern, "Missing 'pattern'.");
+		final Parser parser = new Parser(pattern);
+		final Regex.Builder regex = parser.parseAlternatives();
+		if (parser.index < pattern.length())
+		{
+			throw parser.error("Unmatched ')'");
+		}
+		return regex;
+	}
+
+	private final String pattern;
+
+	private int index;
+
+	private Parser(final String pattern)
+	{
+		this.pattern = pattern;
+	}
+
+	private Regex.Builder parseAlternatives()
+	{
+		final List<Regex.Builder> alternatives = Lists.newArrayList();
+		alternatives.add(parseConcatenation());
+		while (peek() == '|')
+		{
+			this.index++;
+			alternatives.add(parseConcatenation());
+		}
+		if (alternatives.size() == 1)
+		{
+			return alternatives.get(0);
+		}
+		return Regex.firstOf(
+				alternatives.get(0),
+				alternatives.get(1),
+				alternatives.subList(2, alternatives.size()).toArray(new Regex.Builder[alternatives.size() - 2]));
+	}
+
+	private Regex.Builder parseConcatenation()
+	{
+		final Regex.Builder regex = Regex.text("");
+		while (this.index < this.pattern.length() && peek() != '|' && peek() != ')')
+		{
+			regex.concat(parseQuantified());
+		}
+		return regex;
+	}
+
+	private Regex.Builder parseQuantified()
+	{
+		Regex.Builder regex = parseAtom();
+		while (this.index < this.pattern.length())
+		{
+			final int start = this.index;
+			switch (peek())
+			{
+				case '*':
+				{
+					this.index++;
+					regex = Regex.zeroOrMore(regex);
+					break;
+				}
+				case '+':
+				{
+					this.index++;
+					regex = Regex.oneOrMore(regex);
+					break;
+				}
+				case '?':
+				{
+					this.index++;
+					regex = Regex.optional(regex);
+					break;
+				}
+				case '{':
+				{
+					this.index++;
+					final int min = parseNumber();
+					int max = min;
+					if (peek() == ',')
+					{
+						this.index++;
+						max = peek() == '}' ? -1 : parseNumber();
+					}
+					expect('}');
+					if (max != -1 && max < min)
+					{
+						this.index = start;
+						throw error("Invalid repetition");
+					}
+					regex = max == -1 ? Regex.repeat(regex, min) : Regex.repeat(regex, min, max);
+					break;
+				}
+				default:
+				{
+					return regex;
+				}
+			}
+			if (peek() == '?' || peek() == '+')
+			{
+				throw error("Lazy and possessive quantifiers are not supported");
+			}
+		}
+		return regex;
+	}
+
+	private Regex.Builder parseAtom()
+	{
+		final int codePoint = next();
+		switch (codePoint)
+		{
+			case '(':
+			{
+				final boolean capturing = !this.pattern.startsWith("?:", this.index);
+				if (!capturing)
+				{
+					this.index += 2;
+				}
+				final Regex.Builder regex = parseAlternatives();
+				expect(')');
+				return capturing ? Regex.group(regex) : regex;
+			}
+			case '[':
+			{
+				return Regex.codePoints(parseClass());
+			}
+			case '.':
+			{
+				return Regex.codePoints(ANY_BUT_NEWLINE);
+			}
+			case '\\':
+			{
+				final CodePoints codePoints = parseEscape();
+				return codePoints.rangeCount() == 1 && codePoints.lowerBound(0) == codePoints.upperBound(0)
+						? Regex.codePoint(CodePoint.of(codePoints.lowerBound(0)))
+						: Regex.codePoints(codePoints);
+			}
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+			{
+				this.index--;
+				throw error("Nothing to repeat");
+			}
+			case '^':
+			case '$':
+			{
+				this.index--;
+				throw error("Anchors are not supported");
+			}
+			default:
+			{
+				return Regex.codePoint(CodePoint.of(codePoint));
+			}
+		}
+	}
+
+	private CodePoints parseClass()
+	{
+		final boolean negated = peek() == '^';
+		if (negated)
+		{
+			this.index++;
+		}
+		final CodePoints.Builder codePoints = new CodePoints.Builder();
+		boolean first = true;
+		while (first || peek() != ']')
+		{
+			first = false;
+			final int lowerBound = next();
+			if (lowerBound == '\\')
+			{
+				final CodePoints escaped = parseEscape();
+				if (escaped.rangeCount() != 1 || escaped.lowerBound(0) != escaped.upperBound(0))
+				{
+					codePoints.and(escaped);
+					continue;
+				}
+				addRange(codePoints, escaped.lowerBound(0));
+				continue;
+			}
+			addRange(codePoints, lowerBound);
+		}
+		this.index++;
+		return negated ? codePoints.build().complement() : codePoints.build();
+	}
+
+	// Adds lowerBound, or the range from lowerBound when it is followed by '-' and another code point.
+	private void addRange(final CodePoints.Builder codePoints, final int lowerBound)
+	{
+		if (peek() != '-' || this.pattern.startsWith("-]", this.index))
+		{
+			codePoints.and(CodePoint.of(lowerBound));
+			return;
+		}
+		this.index++;
+		final int start = this.index;
+		int upperBound = next();
+		if (upperBound == '\\')
+		{
+			final CodePoints escaped = parseEscape();
+			if (escaped.rangeCount() != 1 || escaped.lowerBound(0) != escaped.upperBound(0))
+			{
+				this.index = start;
+				throw error("Invalid range");
+			}
+			upperBound = escaped.lowerBound(0);
+		}
+		if (upperBound < lowerBound)
+		{
+			this.index = start;
+			throw error("Invalid range");
+		}
+		codePoints.and(CodePoint.of(lowerBound), CodePoint.of(upperBound));
+	}
+
+	private CodePoints parseEscape()
+	{
+		final int start = this.index - 1;
+		final int codePoint = next();
+		switch (codePoint)
+		{
+			case 'd':
+				return DIGITS;
+			case 'D':
+				return DIGITS.complement();
+			case 'w':
+				return WORD_CHARACTERS;
+			case 'W':
+				return WORD_CHARACTERS.complement();
+			case 's':
+				return WHITESPACE;
+			case 'S':
+				return WHITESPACE.complement();
+			case 't':
+				return CodePoints.include('\t').build();
+			case 'n':
+				return CodePoints.include('\n').build();
+			case 'r':
+				return CodePoints.include('\r').build();
+			case 'f':
+				return CodePoints.include('\f').build();
+			case 'x':
+				return CodePoints.include(CodePoint.of(parseHex(start, 2))).build();
+			case 'u':
+				return CodePoints.include(CodePoint.of(parseUnicode(start))).build();
+			default:
+			{
+				if (METACHARACTERS.indexOf(codePoint) == -1 && codePoint != '-')
+				{
+					this.index = start;
+					throw error("Unknown escape");
+				}
+				return CodePoints.include(CodePoint.of(codePoint)).build();
+			}
+		}
+	}
+
+	// Combines the escapes of a surrogate pair into one code point, since the input is decoded the same way, and
+	// rejects a lone surrogate.
+	private int parseUnicode(final int start)
+	{
+		final int value = parseHex(start, 4);
+		if (Character.isHighSurrogate((char) value) && this.pattern.startsWith("\\u", this.index))
+		{
+			final int lowSurrogateStart = this.index;
+			this.index += 2;
+			final int lowSurrogate = parseHex(lowSurrogateStart, 4);
+			if (Character.isLowSurrogate((char) lowSurrogate))
+			{
+				return Character.toCodePoint((char) value, (char) lowSurrogate);
+			}
+		}
+		if (Character.isSurrogate((char) value))
+		{
+			this.index = start;
+			throw error("Invalid escape");
+		}
+		return value;
+	}
+
+	private int parseHex(final int start, final int digitCount)
+	{
+		if (this.index + digitCount > this.pattern.length())
+		{
+			this.index = start;
+			throw error("Invalid escape");
+		}
+		int value = 0;
+		for (int i = this.index; i < this.index + digitCount; i++)
+		{
+			final char ch = this.pattern.charAt(i);
+			final int digit = ch < 0x80 ? Character.digit(ch, 16) : -1;
+			if (digit == -1)
+			{
+				this.index = start;
+				throw error("Invalid escape");
+			}
+			value = value << 4 | digit;
+		}
+		this.index += digitCount;
+		return value;
+	}
+
+	private int parseNumber()
+	{
+		final int start = this.index;
+		while (this.index < this.pattern.length() && Character.isDigit(this.pattern.charAt(this.index)))
+		{
+			this.index++;
+		}
+		if (start == this.index || this.index - start > 6)
+		{
+			this.index = start;
+			throw error("Invalid repetition");
+		}
+		return Integer.parseInt(this.pattern.substring(start, this.index));
+	}
+
+	private void expect(final char ch)
+	{
+		if (peek() != ch)
+		{
+			throw error("Missing '" + ch + "'");
+		}
+		this.index++;
+	}
+
+	// Returns the code point at the current index, or -1 at the end of the pattern.
+	private int peek()
+	{
+		return this.index < this.pattern.length() ? this.pattern.codePointAt(this.index) : -1;
+	}
+
+	private int next()
+	{
+		if (this.index == this.pattern.length())
+		{
+			throw error("Unexpected end of pattern");
+		}
+		final int codePoint = this.pattern.codePointAt(this.index);
+		this.index += Character.charCount(codePoint);
+		return codePoint;
+	}
+
+	private IllegalArgumentException error(final String message)
+	{
+		return new IllegalArgumentException(
+				String.format("%s at index %d of '%s'.", message, Integer.valueOf(this.index), this.pattern));
+	}
+}
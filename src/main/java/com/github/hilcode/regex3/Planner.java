@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+// Picks the cheapest executors for a compiled program, based on its size, its literals, whether it is one-pass, the
+// expected input length and the memory budgets.
+public final class Planner
+{
+	private static final int MAX_EXPLAINED_LITERALS = 10;
+
+	public static final Plan plan(
+			final ImmutableList<Instruction> program,
+			final int groupCount,
+			final int maxDfaStates,
+			final boolean bytecode,
+			final int maxBacktrackingMemory,
+			final int expectedInputLength)
+	{
+		final String literalPrefix = Literals.prefix(program);
+		final Optional<Literals.PrefixSet> prefixes = Literals.prefixes(program);
+		final Optional<AhoCorasick> ahoCorasick = prefixes.isPresent() && prefixes.get().prefixes.size() > 1
+				? Optional.of(AhoCorasick.of(prefixes.get().prefixes))
+				: Optional.<AhoCorasick> absent();
+		final Optional<Prefilter> prefilter;
+		final Optional<AhoCorasick> literalMatcher;
+		if (ahoCorasick.isPresent())
+		{
+			prefilter = Optional.<Prefilter> of(ahoCorasick.get());
+			literalMatcher = prefixes.get().complete ? ahoCorasick : Optional.<AhoCorasick> absent();
+		}
+		else
+		{
+			prefilter = literalPrefix.isEmpty()
+					? Optional.<Prefilter> absent()
+					: Optional.<Prefilter> of(new LiteralSearcher(literalPrefix));
+			literalMatcher = Optional.absent();
+		}
+		final LazyDfa lazyDfa = new LazyDfa(program);
+		final SearchDfa searchDfa = new SearchDfa(program);
+		final Optional<Dfa> dfa = maxDfaStates > 0
+				? Optional.of(Dfa.compile(program, maxDfaStates))
+				: Optional.<Dfa> absent();
+		final Optional<OnePass> onePass = OnePass.compile(program);
+		final Optional<Executor> compiledDfa = dfa.isPresent() && bytecode
+				? BytecodeCompiler.compile(dfa.get())
+				: Optional.<Executor> absent();
+		final Executor matchExecutor;
+		if (compiledDfa.isPresent())
+		{
+			matchExecutor = compiledDfa.get();
+		}
+		else if (dfa.isPresent())
+		{
+			matchExecutor = dfa.get();
+		}
+		else
+		{
+			matchExecutor = onePass.isPresent() ? onePass.get() : lazyDfa;
+		}
+		final ThreadLocal<Regex.VirtualMachine> virtualMachines = new ThreadLocal<Regex.VirtualMachine>()
+		{
+			@Override
+			protected Regex.VirtualMachine initialValue()
+			{
+				return new Regex.VirtualMachine(program);
+			}
+		};
+		final CaptureExecutor virtualMachineExecutor = new VirtualMachineExecutor(virtualMachines, matchExecutor);
+		// The backtracker tracks every counter state, so REPEAT bounds count towards its memory.
+		final int stateCount = new Counters(program).size();
+		final long maxBacktrackingLength = 8L * maxBacktrackingMemory / stateCount - 1;
+		final CaptureExecutor captureExecutor;
+		final String captureReason;
+		if (groupCount == 0)
+		{
+			captureExecutor = new MatchOnlyExecutor(matchExecutor);
+			captureReason = "no groups";
+		}
+		else if (onePass.isPresent())
+		{
+			captureExecutor = onePass.get();
+			captureReason = "single thread";
+		}
+		else if (maxBacktrackingLength >= Math.max(expectedInputLength, 1))
+		{
+			captureExecutor = new BacktrackingExecutor(program, maxBacktrackingMemory, virtualMachineExecutor);
+			captureReason = String.format(
+					"inputs of up to %d code units fit in %d bytes, pike-vm beyond that",
+					Long.valueOf(maxBacktrackingLength),
+					Integer.valueOf(maxBacktrackingMemory));
+		}
+		else
+		{
+			captureExecutor = virtualMachineExecutor;
+			captureReason = "tagged threads over the span found by " + matchExecutor.getName();
+		}
+		return new Plan(
+				program,
+				groupCount,
+				literalPrefix,
+				prefixes,
+				prefilter,
+				literalMatcher,
+				ahoCorasick,
+				lazyDfa,
+				searchDfa,
+				dfa,
+				onePass,
+				matchExecutor,
+				captureExecutor,
+				captureReason,
+				virtualMachines);
+	}
+
+	public static final class Plan
+	{
+		public final ImmutableList<Instruction> program;
+
+		public final int groupCount;
+
+		public final String literalPrefix;
+
+		public final Optional<Literals.PrefixSet> prefixes;
+
+		public final Optional<Prefilter> prefilter;
+
+		public final Optional<AhoCorasick> literalMatcher;
+
+		private final Optional<AhoCorasick> ahoCorasick;
+
+		private final LazyDfa lazyDfa;
+
+		// Finds where matches end for the unanchored scans, unless the literal matcher finds the matches.
+		public final SearchDfa searchDfa;
+
+		public final Optional<Dfa> dfa;
+
+		public final Optional<OnePass> onePass;
+
+		public final Executor matchExecutor;
+
+		public final CaptureExecutor captureExecutor;
+
+		private final String captureReason;
+
+		// Shared with the unanchored searches, which drive the virtual machine directly.
+		public final ThreadLocal<Regex.VirtualMachine> virtualMachines;
+
+		private Plan(
+				final ImmutableList<Instruction> program,
+				final int groupCount,
+				final String literalPrefix,
+				final Optional<Literals.PrefixSet> prefixes,
+				final Optional<Prefilter> prefilter,
+				final Optional<AhoCorasick> literalMatcher,
+				final Optional<AhoCorasick> ahoCorasick,
+				final LazyDfa lazyDfa,
+				final SearchDfa searchDfa,
+				final Optional<Dfa> dfa,
+				final Optional<OnePass> onePass,
+				final Executor matchExecutor,
+				final CaptureExecutor captureExecutor,
+				final String captureReason,
+				final ThreadLocal<Regex.VirtualMachine> virtualMachines)
+		{
+			this.program = program;
+			this.groupCount = groupCount;
+			this.literalPrefix = literalPrefix;
+			this.prefixes = prefixes;
+			this.prefilter = prefilter;
+			this.literalMatcher = literalMatcher;
+			this.ahoCorasick = ahoCorasick;
+			this.lazyDfa = lazyDfa;
+			this.searchDfa = searchDfa;
+			this.dfa = dfa;
+			this.onePass = onePass;
+			this.matchExecutor = matchExecutor;
+			this.captureExecutor = captureExecutor;
+			this.captureReason = captureReason;
+			this.virtualMachines = virtualMachines;
+		}
+
+		public void explain(final StringBuilder explanation)
+		{
+			explanation.append("groups: ").append(this.groupCount).append('\n');
+			explanation.append("one-pass: ").append(this.onePass.isPresent() ? "yes" : "no").append('\n');
+			explanation.append("match: ");
+			if (this.literalMatcher.isPresent())
+			{
+				explanation.append("aho-corasick for text, ");
+			}
+			explanation.append(this.matchExecutor.getName()).append(" (");
+			if (this.dfa.isPresent())
+			{
+				explanation
+						.append(this.dfa.get().getStateCount())
+						.append(" states x ")
+						.append(this.dfa.get().getClassCount())
+						.append(this.matchExecutor == this.dfa.get()
+								? " classes, compiled ahead of time)\n"
+								: " classes, compiled to bytecode)\n");
+			}
+			else if (this.onePass.isPresent())
+			{
+				explanation.append(this.onePass.get().getStateCount()).append(" states)\n");
+			}
+			else
+			{
+				explanation
+						.append(this.lazyDfa.getStateCount())
+						.append(" of at most ")
+						.append(this.lazyDfa.getMaxStates())
+						.append(" states built so far)\n");
+			}
+			explanation
+					.append("capture: ")
+					.append(this.captureExecutor.getName())
+					.append(" (")
+					.append(this.captureReason)
+					.append(")\n");
+			explanation.append("find: match at each candidate position\n");
+			explanation.append("findAll, count: ");
+			if (this.literalMatcher.isPresent())
+			{
+				explanation.append("aho-corasick for text\n");
+			}
+			else
+			{
+				explanation
+						.append("search-dfa for match ends (")
+						.append(this.searchDfa.getStateCount())
+						.append(" of at most ")
+						.append(this.searchDfa.getMaxStates())
+						.append(" states built so far), ")
+						.append(this.matchExecutor.getName())
+						.append(" for starts, pike-vm when either gives up\n");
+			}
+			explanation.append("findAll of a source: pike-vm\n");
+			explanation.append("push matcher, match processor: pike-vm with tagged threads\n");
+			explanation.append("literal prefix: \"").append(this.literalPrefix).append("\"\n");
+			if (this.prefixes.isPresent())
+			{
+				final ImmutableList<String> literals = this.prefixes.get().prefixes;
+				explanation
+						.append("literals: ")
+						.append(literals.size())
+						.append(this.prefixes.get().complete ? " (complete) \"" : " (prefixes) \"")
+						.append(Joiner.on("\", \"").join(literals.subList(0, Math.min(MAX_EXPLAINED_LITERALS, literals.size()))))
+						.append(literals.size() > MAX_EXPLAINED_LITERALS ? "\", ...\n" : "\"\n");
+			}
+			explanation.append("prefilter: ");
+			if (this.ahoCorasick.isPresent())
+			{
+				explanation
+						.append("aho-corasick (")
+						.append(this.ahoCorasick.get().getStateCount())
+						.append(this.ahoCorasick.get().isDense() ? " states)\n" : " states, sparse)\n");
+			}
+			else if (this.prefilter.isPresent())
+			{
+				explanation.append("literal prefix\n");
+			}
+			else
+			{
+				explanation.append("none\n");
+			}
+		}
+	}
+
+	private static final class VirtualMachineExecutor
+		implements
+			CaptureExecutor
+	{
+		private final ThreadLocal<Regex.VirtualMachine> virtualMachines;
+
+		private final Executor matchExecutor;
+
+		public VirtualMachineExecutor(
+				final ThreadLocal<Regex.VirtualMachine> virtualMachines,
+				final Executor matchExecutor)
+		{
+			this.virtualMachines = virtualMachines;
+			this.matchExecutor = matchExecutor;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "pike-vm";
+		}
+
+		@Override
+		public int longestMatch(final Regex.CodePointSource source)
+		{
+			return this.virtualMachines.get().longestMatch(source);
+		}
+
+		// The match executor finds the end of the match first, so that no thread runs past it.
+		@Override
+		public int[] capture(final CharSequence text, final int offset, final int end)
+		{
+			final int length = this.matchExecutor.longestMatch(new CodePointSources.CharSequenceSource(text, offset, end));
+			if (length == -1)
+			{
+				return null;
+			}
+			final Regex.CodePointSource source = new CodePointSources.CharSequenceSource(text, offset, offset + length);
+			return this.virtualMachines.get().capture(source, offset);
+		}
+	}
+
+	private static final class BacktrackingExecutor
+		implements
+			CaptureExecutor
+	{
+		private final int stateCount;
+
+		private final int maxMemory;
+
+		private final ThreadLocal<Backtracker> backtrackers;
+
+		private final CaptureExecutor fallback;
+
+		public BacktrackingExecutor(
+				final ImmutableList<Instruction> program,
+				final int maxMemory,
+				final CaptureExecutor fallback)
+		{
+			this.stateCount = new Counters(program).size();
+			this.maxMemory = maxMemory;
+			this.backtrackers = new ThreadLocal<Backtracker>()
+			{
+				@Override
+				protected Backtracker initialValue()
+				{
+					return new Backtracker(program);
+				}
+			};
+			this.fallback = fallback;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "backtracking";
+		}
+
+		@Override
+		public int longestMatch(final Regex.CodePointSource source)
+		{
+			return this.fallback.longestMatch(source);
+		}
+
+		@Override
+		public int[] capture(final CharSequence text, final int offset, final int end)
+		{
+			if (Backtracker.fits(this.stateCount, end - offset, this.maxMemory))
+			{
+				return this.backtrackers.get().capture(text, offset, end);
+			}
+			return this.fallback.capture(text, offset, end);
+		}
+	}
+
+	// Without groups, capturing only needs the length of the match.
+	private static final class MatchOnlyExecutor
+		implements
+			CaptureExecutor
+	{
+		private final Executor executor;
+
+		public MatchOnlyExecutor(final Executor executor)
+		{
+			this.executor = executor;
+		}
+
+		@Override
+		public String getName()
+		{
+			return this.executor.getName();
+		}
+
+		@Override
+		public int longestMatch(final Regex.CodePointSource source)
+		{
+			return this.executor.longestMatch(source);
+		}
+
+		@Override
+		public int[] capture(final CharSequence text, final int offset, final int end)
+		{
+			final int length = this.executor.longestMatch(new CodePointSources.CharSequenceSource(text, offset, end));
+			return length == -1 ? null : new int[] { offset, offset + length };
+		}
+	}
+
+	private Planner()
+	{
+		// Empty.
+	}
+}
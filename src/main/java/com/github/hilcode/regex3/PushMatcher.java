@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.nio.ByteBuffer;
+import com.google.common.base.Preconditions;
+
+// Finds the matches Regex.findAll would, in input that arrives in chunks. The threads of the virtual machine carry the
+// offset at which they started, and of two threads on the same instruction only the leftmost survives, so a single
+// thread set tracks every start at once. A match is reported as soon as no thread can still extend or precede it.
+// Apart from the thread set, only the code points read past the end of the pending match are kept, since the search
+// for the next match resumes there.
+public final class PushMatcher
+{
+	public interface MatchHandler
+	{
+		// Offsets are in UTF-16 code units for char chunks and in bytes for byte chunks. Returns false to stop
+		// matching.
+		boolean onMatch(long start, long end);
+	}
+
+	private enum Input
+	{
+		NONE,
+		CHARS,
+		UTF8
+	}
+
+	private final Nfa nfa;
+
+	private final Counters counters;
+
+	private final MatchHandler handler;
+
+	private Input input = Input.NONE;
+
+	private boolean finished;
+
+	private boolean stopped;
+
+	// A high surrogate at the end of a char chunk, or -1.
+	private int pendingHighSurrogate = -1;
+
+	// The bytes of an incomplete UTF-8 sequence at the end of a byte chunk.
+	private final int[] pendingBytes = new int[3];
+
+	private int pendingByteCount;
+
+	// The code points from bufferOffset on are codePoints[start..size), with their width in the input; those before
+	// index have been matched.
+	private int[] codePoints = new int[16];
+
+	private byte[] widths = new byte[16];
+
+	private int start;
+
+	private int size;
+
+	private int index;
+
+	private long bufferOffset;
+
+	private long offset;
+
+	// The thread set at offset, ordered by start.
+	private int[] programCounters;
+
+	private long[] starts;
+
+	private int threadCount;
+
+	private int[] nextProgramCounters;
+
+	private long[] nextStarts;
+
+	private final SparseSet visited;
+
+	private final int[] stack;
+
+	private long matchStart = -1;
+
+	private long matchEnd = -1;
+
+	private long previousEnd = -1;
+
+	PushMatcher(final Nfa nfa, final MatchHandler handler)
+	{
+		this.nfa = nfa;
+		this.counters = nfa.counters;
+		this.handler = handler;
+		final int size = this.counters.size();
+		this.programCounters = new int[size];
+		this.starts = new long[size];
+		this.nextProgramCounters = new int[size];
+		this.nextStarts = new long[size];
+		this.visited = new SparseSet(size);
+		this.stack = new int[size];
+		this.visited.clear();
+		addThreads(0, 0L);
+	}
+
+	public void feed(final char[] chunk)
+	{
+		Preconditions.checkNotNull(chunk, "Missing 'chunk'.");
+		feed(chunk, 0, chunk.length);
+	}
+
+	public void feed(final char[] chunk, final int offset, final int length)
+	{
+		Preconditions.checkNotNull(chunk, "Missing 'chunk'.");
+		Preconditions.checkPositionIndexes(offset, offset + length, chunk.length);
+		start(Input.CHARS);
+		for (int i = offset; i < offset + length && !this.stopped; i++)
+		{
+			final char ch = chunk[i];
+			if (this.pendingHighSurrogate != -1)
+			{
+				final int high = this.pendingHighSurrogate;
+				this.pendingHighSurrogate = -1;
+				if (Character.isLowSurrogate(ch))
+				{
+					push(Character.toCodePoint((char) high, ch), 2);
+					continue;
+				}
+				push(high, 1);
+			}
+			if (Character.isHighSurrogate(ch))
+			{
+				this.pendingHighSurrogate = ch;
+			}
+			else
+			{
+				push(ch, 1);
+			}
+		}
+	}
+
+	// Consumes the remaining bytes of the chunk, which are decoded as UTF-8 like CodePointSources.ofUtf8 does.
+	public void feed(final ByteBuffer chunk)
+	{
+		Preconditions.checkNotNull(chunk, "Missing 'chunk'.");
+		start(Input.UTF8);
+		final int position = chunk.position();
+		final int length = this.pendingByteCount + chunk.remaining();
+		int i = 0;
+		while (i < length && !this.stopped)
+		{
+			final int width = decode(chunk, position, i, length, false);
+			if (width == 0)
+			{
+				for (int j = i; j < length; j++)
+				{
+					this.pendingBytes[j - i] = byteAt(chunk, position, j);
+				}
+				this.pendingByteCount = length - i;
+				chunk.position(chunk.limit());
+				return;
+			}
+			i += width;
+		}
+		this.pendingByteCount = 0;
+		chunk.position(chunk.limit());
+	}
+
+	// Marks the end of the input, reporting the matches that were still pending.
+	public void finish()
+	{
+		Preconditions.checkState(!this.finished, "Already finished.");
+		if (this.pendingHighSurrogate != -1 && !this.stopped)
+		{
+			push(this.pendingHighSurrogate, 1);
+			this.pendingHighSurrogate = -1;
+		}
+		final ByteBuffer empty = ByteBuffer.allocate(0);
+		int i = 0;
+		while (i < this.pendingByteCount && !this.stopped)
+		{
+			i += decode(empty, 0, i, this.pendingByteCount, true);
+		}
+		this.pendingByteCount = 0;
+		this.finished = true;
+		run();
+	}
+
+	private void start(final Input input)
+	{
+		Preconditions.checkState(!this.finished, "Already finished.");
+		Preconditions.checkState(
+				this.input == Input.NONE || this.input == input,
+				"Char and byte chunks cannot be mixed.");
+		this.input = input;
+	}
+
+	private int byteAt(final ByteBuffer chunk, final int position, final int i)
+	{
+		return i < this.pendingByteCount
+				? this.pendingBytes[i]
+				: chunk.get(position + i - this.pendingByteCount) & 0xFF;
+	}
+
+	// Pushes the code point starting at byte i of the pending bytes followed by the chunk, and returns its width, or 0
+	// when its sequence may still be completed by the next chunk. Malformed sequences decode to one U+FFFD per maximal
+	// subpart, as in CodePointSources.Utf8Source.
+	private int decode(final ByteBuffer chunk, final int position, final int i, final int length, final boolean last)
+	{
+		final int b0 = byteAt(chunk, position, i);
+		if (b0 < 0x80)
+		{
+			push(b0, 1);
+			return 1;
+		}
+		final int continuationCount;
+		final int min;
+		final int max;
+		if (b0 < 0xC2 || b0 >= 0xF5)
+		{
+			push(CodePointSources.REPLACEMENT_CHARACTER, 1);
+			return 1;
+		}
+		else if (b0 < 0xE0)
+		{
+			continuationCount = 1;
+			min = 0x80;
+			max = 0xBF;
+		}
+		else if (b0 < 0xF0)
+		{
+			continuationCount = 2;
+			min = b0 == 0xE0 ? 0xA0 : 0x80;
+			max = b0 == 0xED ? 0x9F : 0xBF;
+		}
+		else
+		{
+			continuationCount = 3;
+			min = b0 == 0xF0 ? 0x90 : 0x80;
+			max = b0 == 0xF4 ? 0x8F : 0xBF;
+		}
+		int codePoint = b0 & 0x3F >> continuationCount;
+		for (int j = 1; j <= continuationCount; j++)
+		{
+			if (i + j == length && !last)
+			{
+				return 0;
+			}
+			final int b = i + j < length ? byteAt(chunk, position, i + j) : -1;
+			if (j == 1 ? b < min || b > max : b < 0x80 || b > 0xBF)
+			{
+				push(CodePointSources.REPLACEMENT_CHARACTER, j);
+				return j;
+			}
+			codePoint = codePoint << 6 | b & 0x3F;
+		}
+		push(codePoint, continuationCount + 1);
+		return continuationCount + 1;
+	}
+
+	private void push(final int codePoint, final int width)
+	{
+		if (this.size == this.codePoints.length)
+		{
+			compact();
+		}
+		this.codePoints[this.size] = codePoint;
+		this.widths[this.size++] = (byte) width;
+		run();
+	}
+
+	// Makes room for at least one more code point, moving the needed ones to the front only when that frees at least
+	// half of the buffer, so that every code point is moved a constant number of times on average.
+	private void compact()
+	{
+		final int length = this.size - this.start;
+		if (this.start >= this.codePoints.length / 2)
+		{
+			System.arraycopy(this.codePoints, this.start, this.codePoints, 0, length);
+			System.arraycopy(this.widths, this.start, this.widths, 0, length);
+		}
+		else
+		{
+			final int[] codePoints = new int[this.codePoints.length * 2];
+			final byte[] widths = new byte[this.widths.length * 2];
+			System.arraycopy(this.codePoints, this.start, codePoints, 0, length);
+			System.arraycopy(this.widths, this.start, widths, 0, length);
+			this.codePoints = codePoints;
+			this.widths = widths;
+		}
+		this.index -= this.start;
+		this.size = length;
+		this.start = 0;
+	}
+
+	// Steps the thread set over the buffered code points and reports the matches that become known.
+	private void run()
+	{
+		while (!this.stopped)
+		{
+			if (this.matchStart != -1 && (this.threadCount == 0 || this.finished && this.index == this.size))
+			{
+				report();
+				continue;
+			}
+			if (this.index == this.size)
+			{
+				return;
+			}
+			final int codePoint = this.codePoints[this.index];
+			this.offset += this.widths[this.index++];
+			step(codePoint);
+			if (this.matchStart == -1)
+			{
+				// Nothing before the offset is needed again.
+				this.start = this.index;
+				this.bufferOffset = this.offset;
+			}
+		}
+	}
+
+	private void step(final int codePoint)
+	{
+		final int[] programCounters = this.programCounters;
+		final long[] starts = this.starts;
+		final int threadCount = this.threadCount;
+		this.programCounters = this.nextProgramCounters;
+		this.starts = this.nextStarts;
+		this.nextProgramCounters = programCounters;
+		this.nextStarts = starts;
+		this.threadCount = 0;
+		this.visited.clear();
+		for (int i = 0; i < threadCount; i++)
+		{
+			if (this.nfa.matches(programCounters[i], codePoint))
+			{
+				addThreads(this.counters.next(programCounters[i]), starts[i]);
+			}
+		}
+		if (this.matchStart == -1)
+		{
+			addThreads(0, this.offset);
+		}
+		else
+		{
+			// Threads that started after the match can no longer be the leftmost.
+			while (this.threadCount > 0 && this.starts[this.threadCount - 1] > this.matchStart)
+			{
+				this.threadCount--;
+			}
+		}
+	}
+
+	// Adds the threads reachable from pc without consuming a code point, and records the match if SUCCESS is.
+	private void addThreads(final int pc, final long start)
+	{
+		if (!this.visited.add(pc))
+		{
+			return;
+		}
+		int stackSize = 0;
+		this.stack[stackSize++] = pc;
+		while (stackSize > 0)
+		{
+			final int current = this.stack[--stackSize];
+			final Instruction instruction = this.counters.instruction(current);
+			switch (instruction.type)
+			{
+				case FORK:
+				{
+					final Instruction.Fork fork = instruction.cast();
+					if (this.visited.add(current + fork.offset))
+					{
+						this.stack[stackSize++] = current + fork.offset;
+					}
+					if (this.visited.add(current + 1))
+					{
+						this.stack[stackSize++] = current + 1;
+					}
+					break;
+				}
+				case JUMP:
+				{
+					final Instruction.Jump jump = instruction.cast();
+					if (this.visited.add(current + jump.offset))
+					{
+						this.stack[stackSize++] = current + jump.offset;
+					}
+					break;
+				}
+				case SAVE:
+				{
+					if (this.visited.add(current + 1))
+					{
+						this.stack[stackSize++] = current + 1;
+					}
+					break;
+				}
+				case REPEAT:
+				{
+					final Instruction.Repeat repeat = instruction.cast();
+					final int count = this.counters.count(current);
+					if (count >= repeat.min && this.visited.add(this.counters.exit(current)))
+					{
+						this.stack[stackSize++] = this.counters.exit(current);
+					}
+					if (count < repeat.max)
+					{
+						addThread(current, start);
+					}
+					break;
+				}
+				case SUCCESS:
+				{
+					if (this.matchStart == -1 || start < this.matchStart)
+					{
+						this.matchStart = start;
+						this.matchEnd = this.offset;
+					}
+					else if (start == this.matchStart)
+					{
+						this.matchEnd = this.offset;
+					}
+					break;
+				}
+				default:
+				{
+					addThread(current, start);
+					break;
+				}
+			}
+		}
+	}
+
+	private void addThread(final int pc, final long start)
+	{
+		this.programCounters[this.threadCount] = pc;
+		this.starts[this.threadCount++] = start;
+	}
+
+	// Reports the pending match unless it is empty and abuts the previous one, and resumes the search at its end, or
+	// one code point further for an empty match.
+	private void report()
+	{
+		final long start = this.matchStart;
+		final long end = this.matchEnd;
+		this.matchStart = -1;
+		this.matchEnd = -1;
+		if (start != end || end != this.previousEnd)
+		{
+			if (!this.handler.onMatch(start, end))
+			{
+				this.stopped = true;
+				return;
+			}
+			this.previousEnd = end;
+		}
+		// Rewinds to the end of the match and forgets everything before it.
+		int index = this.start;
+		long offset = this.bufferOffset;
+		while (offset < end)
+		{
+			offset += this.widths[index++];
+		}
+		this.start = index;
+		this.index = index;
+		this.bufferOffset = end;
+		this.offset = end;
+		this.threadCount = 0;
+		if (start != end)
+		{
+			this.visited.clear();
+			addThreads(0, end);
+		}
+	}
+}
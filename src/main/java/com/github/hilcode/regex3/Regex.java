@@ -15,17 +15,35 @@
  */
 package com.github.hilcode.regex3;
 
-import java.util.BitSet;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import com.google.common.base.Optional;
-import com.google.common.base.Verify;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
+// Immutable and safe to share between threads: the scratch space of the executors is kept per thread.
 public final class Regex
 {
+	public static final int MAX_REPEAT = 100_000;
+
+	// A repeated regex that does not become a single REPEAT instruction is copied, up to this many instructions.
+	public static final int MAX_REPEATED_INSTRUCTIONS = 100_000;
+
+	// Texts shorter than this are not split for parallel scans.
+	public static final int MIN_CHUNK_SIZE = 1 << 16;
+
 	public static final Builder codePoint(final char ch)
 	{
 		return new Builder().codePoint(ch);
@@ -73,6 +91,26 @@ public final class Regex
 		return new Builder().zeroOrMore(regex);
 	}
 
+	public static final Builder group(final Builder regex)
+	{
+		return new Builder().group(regex);
+	}
+
+	public static final Builder repeat(final Builder regex, final int min, final int max)
+	{
+		return new Builder().repeat(regex, min, max);
+	}
+
+	public static final Builder repeat(final Builder regex, final int min)
+	{
+		return new Builder().repeat(regex, min);
+	}
+
+	public static final Builder oneOrMore(final Builder regex)
+	{
+		return new Builder().repeat(regex, 1);
+	}
+
 	public static final Builder firstOf(
 			final Builder firstRegex,
 			final Builder secondRegex,
@@ -81,10 +119,34 @@ public final class Regex
 		return new Builder().firstOf(firstRegex, secondRegex, regexs);
 	}
 
+	// Checks that copying size instructions, each with a FORK, the given number of times stays within
+	// MAX_REPEATED_INSTRUCTIONS.
+	static final void checkRepeatedSize(final int size, final int copies)
+	{
+		Preconditions.checkArgument(
+				(long) copies * (size + 1) <= MAX_REPEATED_INSTRUCTIONS,
+				"Unable to repeat %s instructions %s times: that takes more than %s instructions.",
+				Integer.valueOf(size),
+				Integer.valueOf(copies),
+				Integer.valueOf(MAX_REPEATED_INSTRUCTIONS));
+	}
+
 	public static final class Builder
 	{
 		private final List<Instruction> program = Lists.newArrayList();
 
+		private int groupCount;
+
+		private int maxDfaStates;
+
+		private boolean bytecode;
+
+		private int maxBacktrackingMemory = Backtracker.DEFAULT_MAX_MEMORY;
+
+		private int expectedInputLength;
+
+		private boolean utf8;
+
 		private Builder()
 		{
 			// Empty.
@@ -113,6 +175,7 @@ public final class Regex
 
 		public Builder codePoints(final CodePoints codePoints)
 		{
+			Preconditions.checkArgument(!codePoints.isEmpty(), "Empty CodePoints.");
 			this.program.add(new Instruction.Range(codePoints));
 			return this;
 		}
@@ -133,7 +196,7 @@ public final class Regex
 		{
 			for (final Builder regex : regexs)
 			{
-				this.program.addAll(regex.program);
+				append(regex);
 			}
 			return this;
 		}
@@ -141,18 +204,176 @@ public final class Regex
 		public Builder optional(final Builder regex)
 		{
 			this.program.add(new Instruction.Fork(regex.program.size() + 1));
-			this.program.addAll(regex.program);
+			append(regex);
 			return this;
 		}
 
 		public Builder zeroOrMore(final Builder regex)
 		{
 			this.program.add(new Instruction.Fork(regex.program.size() + 2));
-			this.program.addAll(regex.program);
+			append(regex);
+			this.program.add(new Instruction.Jump(-(regex.program.size() + 1)));
+			return this;
+		}
+
+		// Groups are numbered from 1 in the order in which they open, as in java.util.regex.
+		public Builder group(final Builder regex)
+		{
+			final int group = ++this.groupCount;
+			this.program.add(new Instruction.Save(2 * group));
+			append(regex);
+			this.program.add(new Instruction.Save(2 * group + 1));
+			return this;
+		}
+
+		// Matches regex at least min and at most max times. A single code point or class, or an alternation of them
+		// such as (?:a|[b-d]), becomes one REPEAT instruction, whatever the bounds; anything else is copied max times,
+		// as long as that takes at most MAX_REPEATED_INSTRUCTIONS instructions.
+		public Builder repeat(final Builder regex, final int min, final int max)
+		{
+			Preconditions.checkArgument(min >= 0, "Invalid 'min': " + min + ".");
+			Preconditions.checkArgument(max >= min && max <= MAX_REPEAT, "Invalid 'max': " + max + ".");
+			if (max > 1)
+			{
+				final Optional<CodePoints> codePoints = codePointClass(regex);
+				if (codePoints.isPresent())
+				{
+					this.program.add(new Instruction.Repeat(codePoints.get(), min, max));
+					return this;
+				}
+			}
+			checkRepeatedSize(regex.program.size(), max);
+			// Every copy shares the group numbers, as in java.util.regex.
+			for (int i = 0; i < min; i++)
+			{
+				append(regex, this.groupCount);
+			}
+			final int optionalSize = regex.program.size() + 1;
+			for (int i = min; i < max; i++)
+			{
+				this.program.add(new Instruction.Fork((max - i) * optionalSize));
+				append(regex, this.groupCount);
+			}
+			this.groupCount += regex.groupCount;
+			return this;
+		}
+
+		// Matches regex at least min times: min copies, or one REPEAT for what repeat(regex, min, max) turns into one,
+		// followed by a loop.
+		public Builder repeat(final Builder regex, final int min)
+		{
+			Preconditions.checkArgument(min >= 0 && min <= MAX_REPEAT, "Invalid 'min': " + min + ".");
+			final int groupOffset = this.groupCount;
+			final Optional<CodePoints> codePoints = codePointClass(regex);
+			if (codePoints.isPresent())
+			{
+				if (min > 1)
+				{
+					this.program.add(new Instruction.Repeat(codePoints.get(), min, min));
+				}
+				else if (min == 1)
+				{
+					this.program.add(codePointInstruction(regex, codePoints.get()));
+				}
+				this.program.add(new Instruction.Fork(3));
+				this.program.add(codePointInstruction(regex, codePoints.get()));
+				this.program.add(new Instruction.Jump(-2));
+				return this;
+			}
+			checkRepeatedSize(regex.program.size(), min + 1);
+			for (int i = 0; i < min; i++)
+			{
+				append(regex, groupOffset);
+			}
+			this.program.add(new Instruction.Fork(regex.program.size() + 2));
+			append(regex, groupOffset);
 			this.program.add(new Instruction.Jump(-(regex.program.size() + 1)));
+			this.groupCount = groupOffset + regex.groupCount;
 			return this;
 		}
 
+		// Keeps a single SINGLE or RANGE instruction as it is, so that literal prefixes can still be found in it.
+		private static final Instruction codePointInstruction(final Builder regex, final CodePoints codePoints)
+		{
+			return regex.program.size() == 1 ? regex.program.get(0) : new Instruction.Range(codePoints);
+		}
+
+		// Returns the code points of a regex that always consumes exactly one of them: a single code point or class,
+		// or an alternation of them, which consists of forward FORK and JUMP instructions besides the SINGLE and RANGE
+		// ones.
+		private static final Optional<CodePoints> codePointClass(final Builder regex)
+		{
+			final List<Instruction> program = regex.program;
+			final Integer end = Integer.valueOf(program.size());
+			final List<Integer> consumers = Lists.newArrayList();
+			if (!closure(program, 0, consumers) || consumers.contains(end))
+			{
+				return Optional.absent();
+			}
+			CodePoints codePoints = CodePoints.NONE;
+			for (final Integer pc : consumers)
+			{
+				final Instruction instruction = program.get(pc.intValue());
+				final List<Integer> next = Lists.newArrayList();
+				if (!closure(program, pc.intValue() + 1, next) || Collections.frequency(next, end) != next.size())
+				{
+					return Optional.absent();
+				}
+				codePoints = codePoints.union(instruction.type == Instruction.Type.SINGLE
+						? CodePoints.include(instruction.<Instruction.Single> cast().codePoint).build()
+						: instruction.<Instruction.Range> cast().codePoints);
+			}
+			return Optional.of(codePoints);
+		}
+
+		// Adds the SINGLE and RANGE instructions reachable from pc through forward FORK and JUMP instructions to
+		// consumers, and the end of the program if it is reachable. Returns false if anything else is.
+		private static final boolean closure(final List<Instruction> program, final int pc, final List<Integer> consumers)
+		{
+			final List<Integer> stack = Lists.newArrayList(Integer.valueOf(pc));
+			while (!stack.isEmpty())
+			{
+				final int current = stack.remove(stack.size() - 1).intValue();
+				if (current == program.size())
+				{
+					consumers.add(Integer.valueOf(current));
+					continue;
+				}
+				final Instruction instruction = program.get(current);
+				switch (instruction.type)
+				{
+					case SINGLE:
+					case RANGE:
+						consumers.add(Integer.valueOf(current));
+						break;
+					case FORK:
+					{
+						final int offset = instruction.<Instruction.Fork> cast().offset;
+						if (offset <= 0)
+						{
+							return false;
+						}
+						stack.add(Integer.valueOf(current + 1));
+						stack.add(Integer.valueOf(current + offset));
+						break;
+					}
+					case JUMP:
+					{
+						final int offset = instruction.<Instruction.Jump> cast().offset;
+						if (offset <= 0)
+						{
+							return false;
+						}
+						stack.add(Integer.valueOf(current + offset));
+						break;
+					}
+					default:
+						return false;
+				}
+			}
+			return true;
+		}
+
 		public Builder firstOf(final Builder firstRegex, final Builder secondRegex, final Builder... regexs)
 		{
 			final List<Builder> builders = Lists.newArrayListWithCapacity(regexs.length + 2);
@@ -170,7 +391,7 @@ public final class Regex
 			while (true)
 			{
 				this.program.add(new Instruction.Fork(regex.program.size() + 2));
-				this.program.addAll(regex.program);
+				append(regex);
 				this.program.add(new Instruction.Jump(jumpOffset));
 				jumpOffset -= 2 + nextRegex.program.size();
 				if (!builderIt.hasNext())
@@ -180,10 +401,76 @@ public final class Regex
 				regex = nextRegex;
 				nextRegex = builderIt.next();
 			}
-			this.program.addAll(nextRegex.program);
+			append(nextRegex);
+			return this;
+		}
+
+		// Appends the program of regex, renumbering its groups to follow the ones already in this program.
+		private void append(final Builder regex)
+		{
+			append(regex, this.groupCount);
+			this.groupCount += regex.groupCount;
+		}
+
+		private void append(final Builder regex, final int groupOffset)
+		{
+			for (final Instruction instruction : regex.program)
+			{
+				if (instruction.type == Instruction.Type.SAVE)
+				{
+					final Instruction.Save save = instruction.cast();
+					this.program.add(new Instruction.Save(save.slot + 2 * groupOffset));
+				}
+				else
+				{
+					this.program.add(instruction);
+				}
+			}
+		}
+
+		public Builder compileToDfa(final int maxStates)
+		{
+			Preconditions.checkArgument(maxStates > 0, "Invalid 'maxStates': " + maxStates + ".");
+			this.maxDfaStates = maxStates;
+			return this;
+		}
+
+		// Like compileToDfa, but also turns the DFA into a generated class, unless its code would be too large.
+		public Builder compileToBytecode(final int maxStates)
+		{
+			compileToDfa(maxStates);
+			this.bytecode = true;
 			return this;
 		}
 
+		// Inputs short enough for the visited bitmap to fit in maxBytes are captured by backtracking; 0 disables it.
+		public Builder maxBacktrackingMemory(final int maxBytes)
+		{
+			Preconditions.checkArgument(maxBytes >= 0, "Invalid 'maxBytes': " + maxBytes + ".");
+			this.maxBacktrackingMemory = maxBytes;
+			return this;
+		}
+
+		// A hint for the planner; 0 means unknown.
+		public Builder expectedInputLength(final int length)
+		{
+			Preconditions.checkArgument(length >= 0, "Invalid 'length': " + length + ".");
+			this.expectedInputLength = length;
+			return this;
+		}
+
+		public Builder compileToUtf8()
+		{
+			this.utf8 = true;
+			return this;
+		}
+
+		// The program without its final SUCCESS, for combining it with other programs.
+		ImmutableList<Instruction> toProgram()
+		{
+			return ImmutableList.copyOf(this.program);
+		}
+
 		public Regex build()
 		{
 			this.program.add(Instruction.Success.SUCCESS);
@@ -193,223 +480,1229 @@ public final class Regex
 
 	public interface CodePointSource
 	{
-		CodePoint nextCodePoint();
+		int EOF = -1;
+
+		int nextCodePoint();
 	}
 
-	public static final class CodePointSourceString
-		implements
-			CodePointSource
+	public interface MatchHandler
 	{
-		private final String text;
+		// Offsets are in UTF-16 code units. Returns false to stop searching.
+		boolean onMatch(int start, int end);
+	}
 
-		private int index;
+	private final ImmutableList<Instruction> program;
+
+	private final int unoptimizedProgramSize;
+
+	private final Planner.Plan plan;
+
+	private final Optional<LazyDfa> utf8LazyDfa;
 
-		public CodePointSourceString(final String text)
+	private final Optional<Dfa> utf8Dfa;
+
+	// Scratch space for anchored matches; the virtual machines of the plan are per thread as well.
+	private final ThreadLocal<CodePointSources.CharSequenceSource> sources;
+
+	private Regex(final Builder builder)
+	{
+		this.program = Optimizer.optimize(builder.program);
+		this.unoptimizedProgramSize = builder.program.size();
+		this.plan = Planner.plan(
+				this.program,
+				builder.groupCount,
+				builder.maxDfaStates,
+				builder.bytecode,
+				builder.maxBacktrackingMemory,
+				builder.expectedInputLength);
+		if (builder.utf8)
 		{
-			this.text = text;
+			final ImmutableList<Instruction> utf8Program = Utf8Compiler.compile(this.program);
+			this.utf8LazyDfa = Optional.of(new LazyDfa(utf8Program));
+			this.utf8Dfa = builder.maxDfaStates > 0
+					? Optional.of(Dfa.compile(utf8Program, builder.maxDfaStates))
+					: Optional.<Dfa> absent();
 		}
-
-		@Override
-		public CodePoint nextCodePoint()
+		else
+		{
+			this.utf8LazyDfa = Optional.absent();
+			this.utf8Dfa = Optional.absent();
+		}
+		this.sources = new ThreadLocal<CodePointSources.CharSequenceSource>()
 		{
-			if (this.index < this.text.length())
+			@Override
+			protected CodePointSources.CharSequenceSource initialValue()
 			{
-				final int codePoint = this.text.codePointAt(this.index);
-				this.index += Character.charCount(codePoint);
-				return CodePoint.of(codePoint);
+				return new CodePointSources.CharSequenceSource("", 0, 0);
 			}
-			else
+		};
+	}
+
+	public Optional<String> match(final String text)
+	{
+		final Optional<Match> match = lookingAt(text, 0);
+		return match.isPresent() ? Optional.of(match.get().toString()) : Optional.<String> absent();
+	}
+
+	public Optional<String> match(final CodePointSource source)
+	{
+		final StringBuilder matchedText = new StringBuilder();
+		final int length = longestMatch(new CodePointSource()
+		{
+			@Override
+			public int nextCodePoint()
 			{
-				return CodePoint.EOF;
+				final int codePoint = source.nextCodePoint();
+				if (codePoint != EOF)
+				{
+					matchedText.appendCodePoint(codePoint);
+				}
+				return codePoint;
 			}
+		});
+		return length == -1 ? Optional.<String> absent() : Optional.of(matchedText.substring(0, length));
+	}
+
+	public String getLiteralPrefix()
+	{
+		return this.plan.literalPrefix;
+	}
+
+	// Describes the executors chosen for this regex and why, the literals found in it and the sizes of its automata.
+	public String explain()
+	{
+		final StringBuilder explanation = new StringBuilder();
+		explanation
+				.append("instructions: ")
+				.append(this.program.size())
+				.append(" (")
+				.append(this.unoptimizedProgramSize)
+				.append(" before optimization)\n");
+		this.plan.explain(explanation);
+		if (this.utf8LazyDfa.isPresent())
+		{
+			explanation
+					.append("utf-8: ")
+					.append(this.utf8Dfa.isPresent() ? this.utf8Dfa.get().getName() : this.utf8LazyDfa.get().getName())
+					.append('\n');
 		}
+		return explanation.toString();
 	}
 
-	private final ImmutableList<Instruction> program;
+	// Returns the longest match starting exactly at fromIndex.
+	public Optional<Match> lookingAt(final CharSequence text, final int fromIndex)
+	{
+		Preconditions.checkPositionIndex(fromIndex, text.length());
+		final int length = longestMatchAt(text, fromIndex);
+		return length == -1 ? Optional.<Match> absent() : Optional.of(new Match(text, fromIndex, fromIndex + length));
+	}
 
-	private Regex(final Builder builder)
+	// Returns the length of the longest match at the start of each text, or -1, without allocating per text.
+	public int[] longestMatches(final Collection<? extends CharSequence> texts)
 	{
-		this.program = ImmutableList.copyOf(builder.program);
-		for (int i = 0; i < this.program.size(); i++)
+		final int[] lengths = new int[texts.size()];
+		int i = 0;
+		for (final CharSequence text : texts)
 		{
-			System.out.println(String.format("%2d %s", Integer.valueOf(i), this.program.get(i)));
+			lengths[i++] = longestMatchAt(text, 0);
 		}
+		return lengths;
 	}
 
-	public Optional<String> match(final String text)
+	// Like longestMatches, but lazily and in parallel when the stream is parallel.
+	public IntStream longestMatches(final Stream<? extends CharSequence> texts)
 	{
-		final VirtualMachine vm = new VirtualMachine(this.program);
-		return vm.run(new CodePointSourceString(text));
+		return texts.mapToInt(text -> longestMatchAt(text, 0));
 	}
 
-	public String generate(final Random rnd)
+	public Stream<Optional<Match>> lookingAt(final Stream<? extends CharSequence> texts)
 	{
-		final VirtualMachine vm = new VirtualMachine(this.program);
-		return vm.generate(rnd);
+		return texts.map(text -> lookingAt(text, 0));
 	}
 
-	public static final class VmThread
+	public Stream<Optional<Match>> capture(final Stream<? extends CharSequence> texts)
 	{
-		public final int programCounter;
+		return texts.map(text -> capture(text, 0));
+	}
 
-		public VmThread(final int programCounter)
-		{
-			this.programCounter = programCounter;
-		}
+	public int getGroupCount()
+	{
+		return this.plan.groupCount;
 	}
 
-	public static final class VirtualMachine
+	public boolean isOnePass()
 	{
-		private final ImmutableList<Instruction> program;
+		return this.plan.onePass.isPresent();
+	}
 
-		public VirtualMachine(final ImmutableList<Instruction> program)
+	// Like lookingAt, but also reports the groups.
+	public Optional<Match> capture(final CharSequence text, final int fromIndex)
+	{
+		Preconditions.checkPositionIndex(fromIndex, text.length());
+		final int[] slots = this.plan.captureExecutor.capture(text, fromIndex, text.length());
+		if (slots == null)
 		{
-			this.program = program;
+			return Optional.absent();
+		}
+		// Groups without SAVE instructions, such as those repeated at most zero times, never participate.
+		final int slotCount = 2 * (this.plan.groupCount + 1);
+		if (slots.length < slotCount)
+		{
+			final int[] allSlots = Arrays.copyOf(slots, slotCount);
+			Arrays.fill(allSlots, slots.length, slotCount, -1);
+			return Optional.of(new Match(text, allSlots));
 		}
+		return Optional.of(new Match(text, slots));
+	}
 
-		public String generate(final Random rnd)
+	// Returns the leftmost-longest match starting at or after fromIndex.
+	public Optional<Match> find(final CharSequence text, final int fromIndex)
+	{
+		Preconditions.checkPositionIndex(fromIndex, text.length());
+		int index = fromIndex;
+		while (index <= text.length())
 		{
-			final StringBuilder text = new StringBuilder();
-			int pc = 0;
-			while (true)
+			if (this.plan.prefilter.isPresent())
 			{
-				final Instruction instruction = this.program.get(pc);
-				switch (instruction.type)
+				index = this.plan.prefilter.get().indexOf(text, index);
+				if (index == -1)
 				{
-					case SINGLE:
-					{
-						final Instruction.Single single = instruction.cast();
-						text.appendCodePoint(single.codePoint.value);
-						pc++;
-						break;
-					}
-					case RANGE:
-					{
-						final Instruction.Range range = instruction.cast();
-						final BitSet bits = range.codePoints.value;
-						Verify.verify(bits.cardinality() > 0, "Invalid cardinality.");
-						int bitNo = rnd.nextInt(bits.cardinality());
-						int currentBit = bits.nextSetBit(0);
-						while (true)
-						{
-							if (bitNo == 0)
-							{
-								text.appendCodePoint(currentBit);
-								break;
-							}
-							currentBit = bits.nextSetBit(currentBit + 1);
-							bitNo--;
-						}
-						pc++;
-						break;
-					}
-					case SUCCESS:
-					{
-						return text.toString();
-					}
-					case FORK:
-					{
-						final Instruction.Fork fork = instruction.cast();
-						pc += rnd.nextBoolean() ? 1 : fork.offset;
-						break;
-					}
-					case JUMP:
-					default:
-					{
-						final Instruction.Jump jump = instruction.cast();
-						pc += jump.offset;
-						break;
-					}
+					return Optional.absent();
 				}
 			}
+			final int length = longestMatchAt(text, index);
+			if (length != -1)
+			{
+				return Optional.of(new Match(text, index, index + length));
+			}
+			index = next(text, index);
 		}
+		return Optional.absent();
+	}
+
+	// Returns the index of the leftmost position at which a match starts, or -1.
+	public int search(final CharSequence text, final int fromIndex)
+	{
+		final Optional<Match> match = find(text, fromIndex);
+		return match.isPresent() ? match.get().start : -1;
+	}
+
+	// Reports all non-overlapping leftmost-longest matches; an empty match is never reported where another one ended.
+	public void findAll(final CharSequence text, final MatchHandler handler)
+	{
+		findAll(text, 0, text.length(), -1, handler);
+	}
 
-		public Optional<String> run(final CodePointSource source)
+	// Reports the matches that start in [from, to), or [from, to] when to is the end of the text, as a scan of the
+	// whole text would if it had reached from after a match ending at previousEnd.
+	private void findAll(
+			final CharSequence text,
+			final int from,
+			final int to,
+			final int previousEnd,
+			final MatchHandler handler)
+	{
+		final boolean bounded = to < text.length();
+		final int[] restart = new int[1];
+		final int[] match = new int[3];
+		int index = from;
+		int previousEnd_ = previousEnd;
+		while (index <= text.length())
 		{
-			String longestMatchedText = null;
-			final StringBuilder matchedText = new StringBuilder();
-			List<VmThread> activeThreads = Lists.newArrayList(new VmThread(0));
-			while (activeThreads.size() > 0)
+			if (this.plan.prefilter.isPresent())
 			{
-				final BitSet existingThreads = new BitSet();
-				final List<VmThread> newThreads = Lists.newArrayList();
-				final CodePoint codePoint = source.nextCodePoint();
-				for (int i = 0; i < activeThreads.size(); i++)
+				index = this.plan.prefilter.get().indexOf(text, index);
+				if (index == -1)
 				{
-					final VmThread vmThread = activeThreads.get(i);
-					final int pc = vmThread.programCounter;
-					final Instruction instruction = this.program.get(pc);
-					switch (instruction.type)
+					return;
+				}
+			}
+			if (bounded && index >= to)
+			{
+				return;
+			}
+			if (this.plan.literalMatcher.isPresent())
+			{
+				// Every match starts with a literal the prefilter finds, and is one.
+				final int length = this.plan.literalMatcher.get().longestMatchAt(text, index);
+				if (length == -1)
+				{
+					index = next(text, index);
+					continue;
+				}
+				match[0] = index;
+				match[1] = index + length;
+			}
+			else
+			{
+				// The DFA skips the text in which no match ends, and the leftmost match starts between the last position
+				// at which no thread was in progress and the end of the first match. With a prefilter, the scan returns
+				// to it as soon as no thread is in progress.
+				final int stopAt = this.plan.prefilter.isPresent() ? index : bounded ? to : Integer.MAX_VALUE;
+				final int end = this.plan.searchDfa.scan(text, index, stopAt, restart);
+				if (end == -1)
+				{
+					if (restart[0] >= text.length() || bounded && restart[0] >= to)
 					{
-						case SINGLE:
-						{
-							final Instruction.Single single = instruction.cast();
-							if (single.codePoint.equals(codePoint))
-							{
-								if (!existingThreads.get(pc + 1))
-								{
-									newThreads.add(new VmThread(pc + 1));
-									existingThreads.set(pc + 1);
-								}
-							}
-							break;
-						}
-						case RANGE:
-						{
+						return;
+					}
+					index = restart[0];
+					continue;
+				}
+				if (!findStart(text, restart[0], end, match))
+				{
+					index = match[2];
+					continue;
+				}
+			}
+			if (bounded && match[0] >= to)
+			{
+				return;
+			}
+			if (match[0] == match[1] && match[1] == previousEnd_)
+			{
+				index = next(text, match[1]);
+				continue;
+			}
+			if (!handler.onMatch(match[0], match[1]))
+			{
+				return;
+			}
+			previousEnd_ = match[1];
+			index = match[0] == match[1] ? next(text, match[1]) : match[1];
+		}
+	}
+
+	// Finds the leftmost-longest match starting at or after restart, given that no match starts before restart and the
+	// first match to end ends at end, so that the leftmost one starts before it. Tries the match executor at each
+	// position while that reads at most a few times as many code points as the span, and otherwise leaves the rest to
+	// the virtual machine, which sets match[2] to where it stopped when it finds nothing.
+	private boolean findStart(final CharSequence text, final int restart, final int end, final int[] match)
+	{
+		if (end != SearchDfa.UNDECIDED)
+		{
+			final BudgetedSource source = new BudgetedSource(text, 4L * (end - restart) + 64);
+			for (int index = restart; index < end; index = next(text, index))
+			{
+				final int length = this.plan.matchExecutor.longestMatch(source.reset(index));
+				if (source.isExhausted())
+				{
+					return findStartWithVirtualMachine(text, index, match);
+				}
+				if (length != -1)
+				{
+					match[0] = index;
+					match[1] = index + length;
+					return true;
+				}
+			}
+		}
+		return findStartWithVirtualMachine(text, restart, match);
+	}
+
+	private boolean findStartWithVirtualMachine(final CharSequence text, final int restart, final int[] match)
+	{
+		final CodePointSource source = new CodePointSources.CharSequenceSource(text, restart, text.length());
+		return this.plan.virtualMachines.get().find(source, restart, true, match);
+	}
+
+	// Reads from any index of the text, up to a total number of code points over all reads.
+	private static final class BudgetedSource
+		implements
+			CodePointSource
+	{
+		private final CharSequence text;
+
+		private long budget;
+
+		private int index;
+
+		public BudgetedSource(final CharSequence text, final long budget)
+		{
+			this.text = text;
+			this.budget = budget;
+		}
+
+		public BudgetedSource reset(final int index)
+		{
+			this.index = index;
+			return this;
+		}
+
+		public boolean isExhausted()
+		{
+			return this.budget < 0;
+		}
+
+		@Override
+		public int nextCodePoint()
+		{
+			if (this.index == this.text.length() || --this.budget < 0)
+			{
+				return EOF;
+			}
+			final int codePoint = Character.codePointAt(this.text, this.index);
+			this.index += Character.charCount(codePoint);
+			return codePoint;
+		}
+	}
+
+	// Like findAll, but splits the text into chunks that are scanned concurrently, each as if a match had just ended
+	// at its start. The chunks are then stitched together in order: from the end of the last match reported so far,
+	// matches are found sequentially until one of them is also in the list of its chunk, after which the scans agree
+	// and the rest of that list is taken as is. The result is the same as that of findAll.
+	public void findAll(final CharSequence text, final ForkJoinPool pool, final MatchHandler handler)
+	{
+		final int chunkCount = (int) Math.max(1, Math.min(4L * pool.getParallelism(), text.length() / MIN_CHUNK_SIZE));
+		final int[] bounds = new int[chunkCount + 1];
+		for (int chunk = 1; chunk < chunkCount; chunk++)
+		{
+			int bound = (int) ((long) text.length() * chunk / chunkCount);
+			if (Character.isLowSurrogate(text.charAt(bound)) && Character.isHighSurrogate(text.charAt(bound - 1)))
+			{
+				bound++;
+			}
+			bounds[chunk] = bound;
+		}
+		bounds[chunkCount] = text.length();
+		final List<ForkJoinTask<MatchList>> tasks = Lists.newArrayListWithCapacity(chunkCount);
+		for (int chunk = 0; chunk < chunkCount; chunk++)
+		{
+			final int from = bounds[chunk];
+			final int to = bounds[chunk + 1];
+			tasks.add(pool.submit(() ->
+			{
+				final MatchList matches = new MatchList();
+				findAll(text, from, to, -1, matches);
+				return matches;
+			}));
+		}
+		int index = 0;
+		int previousEnd = -1;
+		final int[] match = new int[2];
+		for (int chunk = 0; chunk < chunkCount; chunk++)
+		{
+			final MatchList matches = tasks.get(chunk).join();
+			final int from = bounds[chunk];
+			final int to = bounds[chunk + 1];
+			// Without a match starting in [index, from), the sequential scan is in the state the chunk was scanned
+			// from, unless an empty match at from would be skipped.
+			int adopted = index < from || index == from && previousEnd != from ? 0 : -1;
+			while (adopted == -1)
+			{
+				match[0] = -1;
+				findAll(text, index, to, previousEnd, (start, end) ->
+				{
+					match[0] = start;
+					match[1] = end;
+					return false;
+				});
+				if (match[0] == -1)
+				{
+					break;
+				}
+				adopted = matches.indexOf(match[0], match[1]);
+				if (adopted == -1)
+				{
+					if (!handler.onMatch(match[0], match[1]))
+					{
+						return;
+					}
+					previousEnd = match[1];
+					index = match[0] == match[1] ? next(text, match[1]) : match[1];
+				}
+			}
+			if (adopted == -1)
+			{
+				continue;
+			}
+			for (int i = adopted; i < matches.size; i++)
+			{
+				final int start = matches.starts[i];
+				final int end = matches.ends[i];
+				if (!handler.onMatch(start, end))
+				{
+					return;
+				}
+				previousEnd = end;
+				index = start == end ? next(text, end) : end;
+			}
+		}
+	}
+
+	public long count(final CharSequence text, final ForkJoinPool pool)
+	{
+		final long[] count = { 0 };
+		findAll(text, pool, (start, end) ->
+		{
+			count[0]++;
+			return true;
+		});
+		return count[0];
+	}
+
+	// Matches in ascending order of start.
+	private static final class MatchList
+		implements
+			MatchHandler
+	{
+		private int[] starts = new int[16];
+
+		private int[] ends = new int[16];
+
+		private int size;
+
+		@Override
+		public boolean onMatch(final int start, final int end)
+		{
+			if (this.size == this.starts.length)
+			{
+				this.starts = Arrays.copyOf(this.starts, 2 * this.size);
+				this.ends = Arrays.copyOf(this.ends, 2 * this.size);
+			}
+			this.starts[this.size] = start;
+			this.ends[this.size++] = end;
+			return true;
+		}
+
+		public int indexOf(final int start, final int end)
+		{
+			final int index = Arrays.binarySearch(this.starts, 0, this.size, start);
+			return index >= 0 && this.ends[index] == end ? index : -1;
+		}
+	}
+
+	public void findAll(final CodePointSource source, final MatchHandler handler)
+	{
+		final VirtualMachine vm = this.plan.virtualMachines.get();
+		final ReplayableSource replayableSource = new ReplayableSource(source, 0);
+		final int[] match = new int[3];
+		int previousEnd = -1;
+		while (true)
+		{
+			final int offset = replayableSource.getOffset();
+			if (!vm.find(replayableSource, offset, true, match))
+			{
+				if (match[2] == offset)
+				{
+					return;
+				}
+				replayableSource.discard();
+				continue;
+			}
+			if (match[0] == match[1] && match[1] == previousEnd)
+			{
+				replayableSource.rewind(match[1]);
+				replayableSource.discard();
+				if (replayableSource.nextCodePoint() == CodePointSource.EOF)
+				{
+					return;
+				}
+				continue;
+			}
+			if (!handler.onMatch(match[0], match[1]))
+			{
+				return;
+			}
+			previousEnd = match[1];
+			replayableSource.rewind(match[1]);
+			replayableSource.discard();
+			if (match[0] == match[1] && replayableSource.nextCodePoint() == CodePointSource.EOF)
+			{
+				return;
+			}
+		}
+	}
+
+	// Returns a matcher that finds the same matches in input fed to it in chunks.
+	public PushMatcher pushMatcher(final PushMatcher.MatchHandler handler)
+	{
+		Preconditions.checkNotNull(handler, "Missing 'handler'.");
+		return new PushMatcher(new Nfa(this.program), handler);
+	}
+
+	// Returns a processor that matches UTF-8 chunks on the common pool, see MatchProcessor.
+	public MatchProcessor matchProcessor()
+	{
+		return matchProcessor(ForkJoinPool.commonPool());
+	}
+
+	public MatchProcessor matchProcessor(final java.util.concurrent.Executor executor)
+	{
+		Preconditions.checkNotNull(executor, "Missing 'executor'.");
+		return new MatchProcessor(this, executor);
+	}
+
+	private static final int next(final CharSequence text, final int index)
+	{
+		return index < text.length() ? index + Character.charCount(Character.codePointAt(text, index)) : index + 1;
+	}
+
+	private int longestMatchAt(final CharSequence text, final int index)
+	{
+		if (this.plan.literalMatcher.isPresent())
+		{
+			return this.plan.literalMatcher.get().longestMatchAt(text, index);
+		}
+		final CodePointSources.CharSequenceSource source = this.sources.get();
+		final int length = longestMatch(source.reset(text, index, text.length()));
+		// Keeps the scratch space from holding on to the text.
+		source.reset("", 0, 0);
+		return length;
+	}
+
+	private int longestMatch(final CodePointSource source)
+	{
+		return this.plan.matchExecutor.longestMatch(source);
+	}
+
+	public int matchUtf8(final byte[] bytes)
+	{
+		return matchUtf8(CodePointSources.ofBytes(bytes));
+	}
+
+	public int matchUtf8(final ByteBuffer bytes)
+	{
+		return matchUtf8(CodePointSources.ofBytes(bytes));
+	}
+
+	private int matchUtf8(final CodePointSource bytes)
+	{
+		Preconditions.checkState(this.utf8LazyDfa.isPresent(), "Regex was not compiled for UTF-8 input.");
+		if (this.utf8Dfa.isPresent())
+		{
+			return this.utf8Dfa.get().longestMatch(bytes);
+		}
+		return this.utf8LazyDfa.get().longestMatch(bytes);
+	}
+
+	public String generate(final Random rnd)
+	{
+		return this.plan.virtualMachines.get().generate(rnd);
+	}
+
+	public String generate(final SplittableRandom rnd)
+	{
+		return this.plan.virtualMachines.get().generate(rnd);
+	}
+
+	// For generating texts uniformly by length rather than by the random choices of the program.
+	public Sampler sampler(final int maxLength)
+	{
+		final Dfa dfa = this.plan.dfa.isPresent()
+				? this.plan.dfa.get()
+				: Dfa.compile(this.program, LazyDfa.DEFAULT_MAX_STATES);
+		return new Sampler(dfa, maxLength);
+	}
+
+	public static final class VirtualMachine
+	{
+		private final ImmutableList<Instruction> program;
+
+		private final Counters counters;
+
+		private SparseSet threads;
+
+		private SparseSet nextThreads;
+
+		// Offset at which the thread at each program counter started, for unanchored searches.
+		private int[] starts;
+
+		private int[] nextStarts;
+
+		private final int[] stack;
+
+		// Capture slots of the thread at each program counter, for the tagged execution mode.
+		private Slots[] threadSlots;
+
+		private Slots[] nextThreadSlots;
+
+		private final int slotCount;
+
+		private final int[] taggedStack;
+
+		private final Slots[] taggedStackSlots;
+
+		private Slots[] freeSlots;
+
+		private int freeSlotCount;
+
+		public VirtualMachine(final ImmutableList<Instruction> program)
+		{
+			this.program = program;
+			this.counters = new Counters(program);
+			final int size = this.counters.size();
+			this.threads = new SparseSet(size);
+			this.nextThreads = new SparseSet(size);
+			this.starts = new int[size];
+			this.nextStarts = new int[size];
+			this.stack = new int[size];
+			this.threadSlots = new Slots[size];
+			this.nextThreadSlots = new Slots[size];
+			int slotCount = 2;
+			for (final Instruction instruction : program)
+			{
+				if (instruction.type == Instruction.Type.SAVE)
+				{
+					final Instruction.Save save = instruction.cast();
+					slotCount = Math.max(slotCount, save.slot + 1);
+				}
+			}
+			this.slotCount = slotCount;
+			this.taggedStack = new int[2 * size + 1];
+			this.taggedStackSlots = new Slots[2 * size + 1];
+			this.freeSlots = new Slots[16];
+		}
+
+		public String generate(final Random rnd)
+		{
+			return generate(bound -> rnd.nextInt(bound));
+		}
+
+		public String generate(final SplittableRandom rnd)
+		{
+			return generate(bound -> rnd.nextInt(bound));
+		}
+
+		// nextInt returns a random int from 0 (inclusive) up to its argument (exclusive).
+		private String generate(final IntUnaryOperator nextInt)
+		{
+			final StringBuilder text = new StringBuilder();
+			int pc = 0;
+			while (true)
+			{
+				final Instruction instruction = this.program.get(pc);
+				switch (instruction.type)
+				{
+					case SINGLE:
+					{
+						final Instruction.Single single = instruction.cast();
+						text.appendCodePoint(single.codePoint.value);
+						pc++;
+						break;
+					}
+					case RANGE:
+					{
+						final Instruction.Range range = instruction.cast();
+						text.appendCodePoint(range.codePoints.get(nextInt.applyAsInt(range.codePoints.size())));
+						pc++;
+						break;
+					}
+					case REPEAT:
+					{
+						final Instruction.Repeat repeat = instruction.cast();
+						final int count = repeat.min + nextInt.applyAsInt(repeat.max - repeat.min + 1);
+						for (int i = 0; i < count; i++)
+						{
+							text.appendCodePoint(repeat.codePoints.get(nextInt.applyAsInt(repeat.codePoints.size())));
+						}
+						pc++;
+						break;
+					}
+					case SUCCESS:
+					{
+						return text.toString();
+					}
+					case FORK:
+					{
+						final Instruction.Fork fork = instruction.cast();
+						pc += nextInt.applyAsInt(2) != 0 ? 1 : fork.offset;
+						break;
+					}
+					case SAVE:
+					{
+						pc++;
+						break;
+					}
+					case JUMP:
+					default:
+					{
+						final Instruction.Jump jump = instruction.cast();
+						pc += jump.offset;
+						break;
+					}
+				}
+			}
+		}
+
+		public int longestMatch(final CodePointSource source)
+		{
+			this.threads.clear();
+			addThread(this.threads, this.starts, 0, 0);
+			return run(source, 0, -1);
+		}
+
+		public int run(
+				final CodePointSource source,
+				final int[] programCounters,
+				final int length,
+				final int longestMatchLength)
+		{
+			this.threads.clear();
+			for (final int programCounter : programCounters)
+			{
+				addThread(this.threads, this.starts, programCounter, 0);
+			}
+			return run(source, length, longestMatchLength);
+		}
+
+		// Lengths are in UTF-16 code units.
+		private int run(final CodePointSource source, final int length, final int longestMatchLength)
+		{
+			int length_ = length;
+			int longestMatchLength_ = longestMatchLength;
+			while (!this.threads.isEmpty())
+			{
+				for (int i = 0; i < this.threads.size(); i++)
+				{
+					if (this.counters.instruction(this.threads.get(i)).type == Instruction.Type.SUCCESS)
+					{
+						longestMatchLength_ = length_;
+						break;
+					}
+				}
+				final int codePoint = source.nextCodePoint();
+				if (codePoint == CodePointSource.EOF)
+				{
+					break;
+				}
+				this.nextThreads.clear();
+				for (int i = 0; i < this.threads.size(); i++)
+				{
+					final int pc = this.threads.get(i);
+					final Instruction instruction = this.counters.instruction(pc);
+					switch (instruction.type)
+					{
+						case SINGLE:
+						{
+							final Instruction.Single single = instruction.cast();
+							if (single.codePoint.value == codePoint)
+							{
+								addThread(this.nextThreads, this.nextStarts, pc + 1, 0);
+							}
+							break;
+						}
+						case RANGE:
+						{
 							final Instruction.Range range = instruction.cast();
 							if (range.codePoints.contains(codePoint))
 							{
-								if (!existingThreads.get(pc + 1))
-								{
-									newThreads.add(new VmThread(pc + 1));
-									existingThreads.set(pc + 1);
-								}
+								addThread(this.nextThreads, this.nextStarts, pc + 1, 0);
 							}
 							break;
 						}
-						case SUCCESS:
+						case REPEAT:
+						{
+							final Instruction.Repeat repeat = instruction.cast();
+							if (this.counters.count(pc) < repeat.max && repeat.matches(codePoint))
+							{
+								addThread(this.nextThreads, this.nextStarts, this.counters.next(pc), 0);
+							}
+							break;
+						}
+						default:
+						{
+							break;
+						}
+					}
+				}
+				length_ += Character.charCount(codePoint);
+				swapThreads();
+			}
+			return longestMatchLength_;
+		}
+
+		// Finds the leftmost-longest match starting at or after offset, storing its start and end in match[0] and
+		// match[1]. When stopWhenIdle is set, it also returns as soon as no match can start before the current
+		// position, storing that position in match[2]; otherwise match[2] is where reading stopped.
+		public boolean find(final CodePointSource source, final int offset, final boolean stopWhenIdle, final int[] match)
+		{
+			this.threads.clear();
+			int position = offset;
+			int matchStart = -1;
+			int matchEnd = -1;
+			while (true)
+			{
+				if (matchStart == -1)
+				{
+					addThread(this.threads, this.starts, 0, position);
+				}
+				for (int i = 0; i < this.threads.size(); i++)
+				{
+					final int pc = this.threads.get(i);
+					if (this.counters.instruction(pc).type == Instruction.Type.SUCCESS)
+					{
+						final int start = this.starts[pc];
+						if (matchStart == -1 || start <= matchStart)
 						{
-							if (longestMatchedText == null || matchedText.length() > longestMatchedText.length())
+							matchStart = start;
+							matchEnd = position;
+						}
+					}
+				}
+				final int codePoint = source.nextCodePoint();
+				if (codePoint == CodePointSource.EOF)
+				{
+					break;
+				}
+				this.nextThreads.clear();
+				for (int i = 0; i < this.threads.size(); i++)
+				{
+					final int pc = this.threads.get(i);
+					final int start = this.starts[pc];
+					if (matchStart != -1 && start > matchStart)
+					{
+						continue;
+					}
+					final Instruction instruction = this.counters.instruction(pc);
+					switch (instruction.type)
+					{
+						case SINGLE:
+						{
+							final Instruction.Single single = instruction.cast();
+							if (single.codePoint.value == codePoint)
 							{
-								longestMatchedText = matchedText.toString();
+								addThread(this.nextThreads, this.nextStarts, pc + 1, start);
 							}
 							break;
 						}
-						case FORK:
+						case RANGE:
 						{
-							final Instruction.Fork fork = instruction.cast();
-							if (!existingThreads.get(pc + 1))
+							final Instruction.Range range = instruction.cast();
+							if (range.codePoints.contains(codePoint))
 							{
-								activeThreads.add(new VmThread(pc + 1));
-								existingThreads.set(pc + 1);
+								addThread(this.nextThreads, this.nextStarts, pc + 1, start);
 							}
-							if (!existingThreads.get(pc + fork.offset))
+							break;
+						}
+						case REPEAT:
+						{
+							final Instruction.Repeat repeat = instruction.cast();
+							if (this.counters.count(pc) < repeat.max && repeat.matches(codePoint))
 							{
-								activeThreads.add(new VmThread(pc + fork.offset));
-								existingThreads.set(pc + fork.offset);
+								addThread(this.nextThreads, this.nextStarts, this.counters.next(pc), start);
 							}
 							break;
 						}
-						case JUMP:
 						default:
 						{
-							final Instruction.Jump jump = instruction.cast();
-							if (!existingThreads.get(pc + jump.offset))
+							break;
+						}
+					}
+				}
+				position += Character.charCount(codePoint);
+				swapThreads();
+				if (this.threads.isEmpty() && (matchStart != -1 || stopWhenIdle))
+				{
+					break;
+				}
+			}
+			match[0] = matchStart;
+			match[1] = matchEnd;
+			match[2] = position;
+			return matchStart != -1;
+		}
+
+		private void swapThreads()
+		{
+			final SparseSet threads = this.threads;
+			this.threads = this.nextThreads;
+			this.nextThreads = threads;
+			final int[] starts = this.starts;
+			this.starts = this.nextStarts;
+			this.nextStarts = starts;
+			final Slots[] threadSlots = this.threadSlots;
+			this.threadSlots = this.nextThreadSlots;
+			this.nextThreadSlots = threadSlots;
+		}
+
+		private void addThread(final SparseSet threads, final int[] starts, final int programCounter, final int start)
+		{
+			if (!threads.add(programCounter))
+			{
+				return;
+			}
+			starts[programCounter] = start;
+			int stackSize = 0;
+			this.stack[stackSize++] = programCounter;
+			while (stackSize > 0)
+			{
+				final int pc = this.stack[--stackSize];
+				final Instruction instruction = this.counters.instruction(pc);
+				switch (instruction.type)
+				{
+					case FORK:
+					{
+						final Instruction.Fork fork = instruction.cast();
+						if (threads.add(pc + fork.offset))
+						{
+							starts[pc + fork.offset] = start;
+							this.stack[stackSize++] = pc + fork.offset;
+						}
+						if (threads.add(pc + 1))
+						{
+							starts[pc + 1] = start;
+							this.stack[stackSize++] = pc + 1;
+						}
+						break;
+					}
+					case JUMP:
+					{
+						final Instruction.Jump jump = instruction.cast();
+						if (threads.add(pc + jump.offset))
+						{
+							starts[pc + jump.offset] = start;
+							this.stack[stackSize++] = pc + jump.offset;
+						}
+						break;
+					}
+					case SAVE:
+					{
+						if (threads.add(pc + 1))
+						{
+							starts[pc + 1] = start;
+							this.stack[stackSize++] = pc + 1;
+						}
+						break;
+					}
+					case REPEAT:
+					{
+						final Instruction.Repeat repeat = instruction.cast();
+						final int exit = this.counters.exit(pc);
+						if (this.counters.count(pc) >= repeat.min && threads.add(exit))
+						{
+							starts[exit] = start;
+							this.stack[stackSize++] = exit;
+						}
+						break;
+					}
+					default:
+					{
+						break;
+					}
+				}
+			}
+		}
+
+		// Returns the capture slots of the longest match starting at offset, or null. Of the threads reaching that
+		// length, the one with the highest priority wins: loops are greedy and earlier alternatives are preferred.
+		public int[] capture(final CodePointSource source, final int offset)
+		{
+			int[] match = null;
+			int position = offset;
+			final Slots initialSlots = allocateSlots();
+			Arrays.fill(initialSlots.values, -1);
+			this.threads.clear();
+			addTaggedThread(this.threads, this.threadSlots, 0, initialSlots, position);
+			while (!this.threads.isEmpty())
+			{
+				final int codePoint = source.nextCodePoint();
+				final int nextPosition = codePoint == CodePointSource.EOF ? position : position + Character.charCount(codePoint);
+				this.nextThreads.clear();
+				for (int i = 0; i < this.threads.size(); i++)
+				{
+					final int pc = this.threads.get(i);
+					final Instruction instruction = this.counters.instruction(pc);
+					switch (instruction.type)
+					{
+						case SINGLE:
+						{
+							final Instruction.Single single = instruction.cast();
+							if (single.codePoint.value == codePoint)
+							{
+								addTaggedThread(this.nextThreads, this.nextThreadSlots, pc + 1, this.threadSlots[pc], nextPosition);
+							}
+							else
+							{
+								release(this.threadSlots[pc]);
+							}
+							break;
+						}
+						case RANGE:
+						{
+							final Instruction.Range range = instruction.cast();
+							if (codePoint != CodePointSource.EOF && range.codePoints.contains(codePoint))
 							{
-								activeThreads.add(new VmThread(pc + jump.offset));
-								existingThreads.set(pc + jump.offset);
+								addTaggedThread(this.nextThreads, this.nextThreadSlots, pc + 1, this.threadSlots[pc], nextPosition);
 							}
+							else
+							{
+								release(this.threadSlots[pc]);
+							}
+							break;
+						}
+						case REPEAT:
+						{
+							// A REPEAT that has reached max only passes its slots on, see addTaggedThread.
+							final Instruction.Repeat repeat = instruction.cast();
+							if (this.counters.count(pc) == repeat.max)
+							{
+								break;
+							}
+							if (repeat.matches(codePoint))
+							{
+								addTaggedThread(
+										this.nextThreads,
+										this.nextThreadSlots,
+										this.counters.next(pc),
+										this.threadSlots[pc],
+										nextPosition);
+							}
+							else
+							{
+								release(this.threadSlots[pc]);
+							}
+							break;
+						}
+						case SUCCESS:
+						{
+							if (match == null || match[1] < position)
+							{
+								if (match == null)
+								{
+									match = new int[this.slotCount];
+								}
+								System.arraycopy(this.threadSlots[pc].values, 0, match, 0, this.slotCount);
+								match[0] = offset;
+								match[1] = position;
+							}
+							release(this.threadSlots[pc]);
+							break;
+						}
+						default:
+						{
 							break;
 						}
 					}
+					this.threadSlots[pc] = null;
+				}
+				position = nextPosition;
+				swapThreads();
+			}
+			return match;
+		}
+
+		// Like addThread, but threads carry capture slots and are added in priority order. Slots are shared between
+		// threads until a SAVE needs to write to them.
+		private void addTaggedThread(
+				final SparseSet threads,
+				final Slots[] threadSlots,
+				final int programCounter,
+				final Slots slots,
+				final int position)
+		{
+			int stackSize = 0;
+			this.taggedStack[stackSize] = programCounter;
+			this.taggedStackSlots[stackSize++] = slots;
+			while (stackSize > 0)
+			{
+				final int pc = this.taggedStack[--stackSize];
+				final Slots pcSlots = this.taggedStackSlots[stackSize];
+				this.taggedStackSlots[stackSize] = null;
+				if (!threads.add(pc))
+				{
+					release(pcSlots);
+					continue;
+				}
+				final Instruction instruction = this.counters.instruction(pc);
+				switch (instruction.type)
+				{
+					case FORK:
+					{
+						final Instruction.Fork fork = instruction.cast();
+						pcSlots.references++;
+						this.taggedStack[stackSize] = pc + fork.offset;
+						this.taggedStackSlots[stackSize++] = pcSlots;
+						this.taggedStack[stackSize] = pc + 1;
+						this.taggedStackSlots[stackSize++] = pcSlots;
+						break;
+					}
+					case JUMP:
+					{
+						final Instruction.Jump jump = instruction.cast();
+						this.taggedStack[stackSize] = pc + jump.offset;
+						this.taggedStackSlots[stackSize++] = pcSlots;
+						break;
+					}
+					case SAVE:
+					{
+						final Instruction.Save save = instruction.cast();
+						final Slots savedSlots;
+						if (pcSlots.references == 1)
+						{
+							savedSlots = pcSlots;
+						}
+						else
+						{
+							savedSlots = allocateSlots();
+							System.arraycopy(pcSlots.values, 0, savedSlots.values, 0, this.slotCount);
+							pcSlots.references--;
+						}
+						savedSlots.values[save.slot] = position;
+						this.taggedStack[stackSize] = pc + 1;
+						this.taggedStackSlots[stackSize++] = savedSlots;
+						break;
+					}
+					case REPEAT:
+					{
+						// Consuming another code point takes priority over stopping, so repetition is greedy.
+						final Instruction.Repeat repeat = instruction.cast();
+						final int count = this.counters.count(pc);
+						if (count < repeat.max)
+						{
+							threadSlots[pc] = pcSlots;
+							if (count >= repeat.min)
+							{
+								pcSlots.references++;
+							}
+						}
+						if (count >= repeat.min)
+						{
+							this.taggedStack[stackSize] = this.counters.exit(pc);
+							this.taggedStackSlots[stackSize++] = pcSlots;
+						}
+						break;
+					}
+					default:
+					{
+						threadSlots[pc] = pcSlots;
+						break;
+					}
 				}
-				if (codePoint != CodePoint.EOF)
+			}
+		}
+
+		private Slots allocateSlots()
+		{
+			final Slots slots = this.freeSlotCount > 0
+					? this.freeSlots[--this.freeSlotCount]
+					: new Slots(this.slotCount);
+			slots.references = 1;
+			return slots;
+		}
+
+		private void release(final Slots slots)
+		{
+			if (--slots.references == 0)
+			{
+				if (this.freeSlotCount == this.freeSlots.length)
 				{
-					matchedText.appendCodePoint(codePoint.value);
+					this.freeSlots = Arrays.copyOf(this.freeSlots, 2 * this.freeSlotCount);
 				}
-				activeThreads = newThreads;
+				this.freeSlots[this.freeSlotCount++] = slots;
+			}
+		}
+
+		private static final class Slots
+		{
+			private final int[] values;
+
+			private int references;
+
+			private Slots(final int slotCount)
+			{
+				this.values = new int[slotCount];
 			}
-			return Optional.fromNullable(longestMatchedText);
 		}
 	}
 }
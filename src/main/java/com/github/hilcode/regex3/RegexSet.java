@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.List;
+import org.roaringbitmap.RoaringBitmap;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+// Matches many patterns in a single scan. Their programs are merged into one, each ending in a SUCCESS that carries
+// the index of its pattern, and run on a lazy DFA whose states know which patterns they accept, or on the NFA itself
+// when the cache of states thrashes.
+public final class RegexSet
+{
+	public static final RegexSet of(final Regex.Builder... builders)
+	{
+		return of(ImmutableList.copyOf(builders));
+	}
+
+	public static final RegexSet of(final List<Regex.Builder> builders)
+	{
+		Preconditions.checkArgument(!builders.isEmpty(), "No patterns.");
+		final ImmutableList.Builder<Instruction> program = ImmutableList.builder();
+		for (int id = 0; id < builders.size(); id++)
+		{
+			final ImmutableList<Instruction> patternProgram = builders.get(id).toProgram();
+			if (id < builders.size() - 1)
+			{
+				program.add(new Instruction.Fork(patternProgram.size() + 2));
+			}
+			program.addAll(patternProgram);
+			program.add(new Instruction.Success(id));
+		}
+		return new RegexSet(Optimizer.optimize(program.build()), builders.size(), LazyDfa.DEFAULT_MAX_STATES);
+	}
+
+	private final int size;
+
+	private final Nfa nfa;
+
+	private final CodePointClasses classes;
+
+	// Each state knows the patterns that match when it is reached.
+	private final StateCache<RoaringBitmap> states;
+
+	private RegexSet(final ImmutableList<Instruction> program, final int size, final int maxStates)
+	{
+		this.size = size;
+		this.nfa = new Nfa(program);
+		this.classes = CodePointClasses.of(program);
+		this.states = new StateCache<>(this.nfa, this.nfa.start(), this::matches, this.classes.size(), maxStates);
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public int getStateCount()
+	{
+		return this.states.getStateCount();
+	}
+
+	public RoaringBitmap matches(final CharSequence text)
+	{
+		return matches(CodePointSources.of(text));
+	}
+
+	// Returns the indexes of the patterns that match a prefix of the source, as Regex.match would.
+	public RoaringBitmap matches(final Regex.CodePointSource source)
+	{
+		final RoaringBitmap matches = new RoaringBitmap();
+		StateCache<RoaringBitmap>.Generation generation = this.states.get();
+		StateCache.State<RoaringBitmap> state = generation.initial;
+		StateCache.State<RoaringBitmap> previousState = null;
+		long codePoints = 0;
+		while (true)
+		{
+			if (state != previousState && state.accepting)
+			{
+				matches.or(state.data);
+			}
+			if (state.dead)
+			{
+				break;
+			}
+			final int codePoint = source.nextCodePoint();
+			if (codePoint == Regex.CodePointSource.EOF)
+			{
+				break;
+			}
+			codePoints++;
+			final int classId = this.classes.classOf(codePoint);
+			StateCache.State<RoaringBitmap> nextState = state.transitions[classId];
+			if (nextState == null)
+			{
+				final int[] nextProgramCounters = this.nfa.step(state.programCounters, this.classes.representative(classId));
+				nextState = generation.add(state, classId, nextProgramCounters);
+				if (nextState == null)
+				{
+					if (generation.isThrashing(codePoints))
+					{
+						return run(source, nextProgramCounters, matches);
+					}
+					generation = this.states.reset(generation);
+					codePoints = 0;
+					nextState = generation.intern(nextProgramCounters);
+				}
+			}
+			previousState = state;
+			state = nextState;
+		}
+		generation.addCodePoints(codePoints);
+		return matches;
+	}
+
+	// Steps the NFA itself over the rest of the source, for when the cache thrashes.
+	private RoaringBitmap run(
+			final Regex.CodePointSource source,
+			final int[] programCounters,
+			final RoaringBitmap matches)
+	{
+		int[] currentProgramCounters = programCounters;
+		while (true)
+		{
+			matches.or(matches(currentProgramCounters));
+			if (this.nfa.isDead(currentProgramCounters))
+			{
+				return matches;
+			}
+			final int codePoint = source.nextCodePoint();
+			if (codePoint == Regex.CodePointSource.EOF)
+			{
+				return matches;
+			}
+			currentProgramCounters = this.nfa.step(currentProgramCounters, codePoint);
+		}
+	}
+
+	// Returns the ids of the SUCCESS instructions among the program counters.
+	private RoaringBitmap matches(final int[] programCounters)
+	{
+		final RoaringBitmap matches = new RoaringBitmap();
+		for (final int pc : programCounters)
+		{
+			final Instruction instruction = this.nfa.instruction(pc);
+			if (instruction.type == Instruction.Type.SUCCESS)
+			{
+				final Instruction.Success success = instruction.cast();
+				matches.add(success.id);
+			}
+		}
+		return matches;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import com.github.hilcode.regex3.Regex.CodePointSource;
+
+// Remembers the code points read since the last discard, so that reading can resume from any offset after it.
+public final class ReplayableSource
+	implements
+		CodePointSource
+{
+	private final CodePointSource source;
+
+	private int[] buffer = new int[16];
+
+	// The code points since the last discard are buffer[start..size).
+	private int start;
+
+	private int size;
+
+	private int index;
+
+	// Offset of buffer[start] and of buffer[index] respectively.
+	private int bufferOffset;
+
+	private int offset;
+
+	public ReplayableSource(final CodePointSource source, final int offset)
+	{
+		this.source = source;
+		this.bufferOffset = offset;
+		this.offset = offset;
+	}
+
+	public int getOffset()
+	{
+		return this.offset;
+	}
+
+	@Override
+	public int nextCodePoint()
+	{
+		final int codePoint;
+		if (this.index < this.size)
+		{
+			codePoint = this.buffer[this.index];
+		}
+		else
+		{
+			codePoint = this.source.nextCodePoint();
+			if (codePoint == EOF)
+			{
+				return EOF;
+			}
+			if (this.size == this.buffer.length)
+			{
+				compact();
+			}
+			this.buffer[this.size++] = codePoint;
+		}
+		this.index++;
+		this.offset += Character.charCount(codePoint);
+		return codePoint;
+	}
+
+	public void rewind(final int offset)
+	{
+		int index = this.start;
+		int indexOffset = this.bufferOffset;
+		while (indexOffset < offset)
+		{
+			indexOffset += Character.charCount(this.buffer[index++]);
+		}
+		this.index = index;
+		this.offset = indexOffset;
+	}
+
+	// Forgets everything before the current offset.
+	public void discard()
+	{
+		this.start = this.index;
+		this.bufferOffset = this.offset;
+	}
+
+	// Makes room for at least one more code point, moving the remembered ones to the front only when that frees at
+	// least half of the buffer, so that every code point is moved a constant number of times on average.
+	private void compact()
+	{
+		final int length = this.size - this.start;
+		if (this.start >= this.buffer.length / 2)
+		{
+			System.arraycopy(this.buffer, this.start, this.buffer, 0, length);
+		}
+		else
+		{
+			final int[] buffer = new int[this.buffer.length * 2];
+			System.arraycopy(this.buffer, this.start, buffer, 0, length);
+			this.buffer = buffer;
+		}
+		this.index -= this.start;
+		this.size = length;
+		this.start = 0;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Random;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+// Generates texts of a given length, uniformly among all texts of that length that the DFA matches. For every state
+// it counts the accepted texts of each length up to maxLength, and then follows each transition with a probability
+// proportional to the number of texts it leads to.
+public final class Sampler
+{
+	private final Dfa dfa;
+
+	private final CodePointClasses classes;
+
+	private final int[] classSizes;
+
+	// counts[length][state] is the number of texts of length code points accepted from state, scaled per length.
+	private final double[][] counts;
+
+	public Sampler(final Dfa dfa, final int maxLength)
+	{
+		Preconditions.checkArgument(maxLength >= 0, "Invalid 'maxLength': " + maxLength + ".");
+		this.dfa = dfa;
+		this.classes = dfa.getClasses();
+		this.classSizes = new int[this.classes.size()];
+		for (int classId = 0; classId < this.classSizes.length; classId++)
+		{
+			final int upperBound = classId + 1 < this.classSizes.length
+					? this.classes.representative(classId + 1)
+					: Character.MAX_CODE_POINT + 1;
+			this.classSizes[classId] = upperBound - this.classes.representative(classId);
+		}
+		final int stateCount = dfa.getStateCount();
+		this.counts = new double[maxLength + 1][stateCount];
+		for (int state = 0; state < stateCount; state++)
+		{
+			this.counts[0][state] = dfa.isAccepting(state) ? 1 : 0;
+		}
+		for (int length = 1; length <= maxLength; length++)
+		{
+			final double[] previous = this.counts[length - 1];
+			final double[] current = this.counts[length];
+			double max = 0;
+			for (int state = 0; state < stateCount; state++)
+			{
+				double count = 0;
+				for (int classId = 0; classId < this.classSizes.length; classId++)
+				{
+					count += this.classSizes[classId] * previous[dfa.transition(state, classId)];
+				}
+				current[state] = count;
+				max = Math.max(max, count);
+			}
+			// Only ratios within a length matter, so scaling keeps the counts from overflowing.
+			if (max > 0)
+			{
+				for (int state = 0; state < stateCount; state++)
+				{
+					current[state] /= max;
+				}
+			}
+		}
+	}
+
+	public int getMaxLength()
+	{
+		return this.counts.length - 1;
+	}
+
+	// Returns a text of length code points, or absent when no such text matches.
+	public Optional<String> sample(final Random rnd, final int length)
+	{
+		Preconditions.checkElementIndex(length, this.counts.length, "length");
+		if (this.counts[length][0] == 0)
+		{
+			return Optional.absent();
+		}
+		final StringBuilder text = new StringBuilder(length);
+		int state = 0;
+		for (int remaining = length; remaining > 0; remaining--)
+		{
+			final double[] next = this.counts[remaining - 1];
+			double total = 0;
+			for (int classId = 0; classId < this.classSizes.length; classId++)
+			{
+				total += this.classSizes[classId] * next[this.dfa.transition(state, classId)];
+			}
+			double pick = rnd.nextDouble() * total;
+			int chosenClassId = -1;
+			for (int classId = 0; classId < this.classSizes.length; classId++)
+			{
+				final double weight = this.classSizes[classId] * next[this.dfa.transition(state, classId)];
+				if (weight > 0)
+				{
+					chosenClassId = classId;
+					if (pick < weight)
+					{
+						break;
+					}
+					pick -= weight;
+				}
+			}
+			text.appendCodePoint(this.classes.representative(chosenClassId) + rnd.nextInt(this.classSizes[chosenClassId]));
+			state = this.dfa.transition(state, chosenClassId);
+		}
+		return Optional.of(text.toString());
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import com.google.common.collect.ImmutableList;
+
+// A lazy DFA for unanchored search. Its states are the instructions reached by threads that have consumed at least one
+// code point, while a new thread starts at every position. So it finds where the first match ends, and the last
+// position before that at which no thread was in progress, which is where the leftmost match can start at the
+// earliest. Only that span needs the virtual machine to find the start.
+public final class SearchDfa
+{
+	// Returned by scan when the cache thrashes, so that the virtual machine takes over.
+	public static final int UNDECIDED = -2;
+
+	// The cache holds at least DEFAULT_MAX_STATES states, and more while their transitions fit in this many entries.
+	private static final int MAX_TRANSITIONS = 1 << 22;
+
+	private final Nfa nfa;
+
+	private final CodePointClasses classes;
+
+	private final int[] start;
+
+	// The step of the threads that start at a position, by code point class. Racing writers store equal arrays.
+	private final int[][] startSteps;
+
+	private final boolean matchesEmpty;
+
+	// The initial state of each generation is the one in which no thread is in progress. A state is accepting when a
+	// match of at least one code point ends there, and dead when no thread is in progress.
+	private final StateCache<Void> states;
+
+	public SearchDfa(final ImmutableList<Instruction> program)
+	{
+		this.nfa = new Nfa(program);
+		this.classes = CodePointClasses.of(program);
+		this.start = this.nfa.start();
+		this.startSteps = new int[this.classes.size()][];
+		this.matchesEmpty = this.nfa.isAccepting(this.start);
+		// Large sets of literals need about as many states as their trie has nodes.
+		this.states = new StateCache<>(
+				this.nfa,
+				new int[0],
+				programCounters -> null,
+				this.classes.size(),
+				Math.max(LazyDfa.DEFAULT_MAX_STATES, MAX_TRANSITIONS / this.classes.size()));
+	}
+
+	public int getStateCount()
+	{
+		return this.states.getStateCount();
+	}
+
+	public int getMaxStates()
+	{
+		return this.states.getMaxStates();
+	}
+
+	// Returns the end of the first match that ends in text[from, end), or -1. Sets restart[0] to the last position
+	// at which no thread was in progress, or, without a match, to where the scan stopped: the end of the text, or
+	// the first such position at or after stopAt. Returns UNDECIDED when the cache thrashes.
+	public int scan(
+			final CharSequence text,
+			final int from,
+			final int stopAt,
+			final int[] restart)
+	{
+		restart[0] = from;
+		if (this.matchesEmpty)
+		{
+			return from;
+		}
+		final int end = text.length();
+		StateCache<Void>.Generation generation = this.states.get();
+		StateCache.State<Void> state = generation.initial;
+		int position = from;
+		long codePoints = 0;
+		while (position < end)
+		{
+			final int codePoint = Character.codePointAt(text, position);
+			position += Character.charCount(codePoint);
+			codePoints++;
+			final int classId = this.classes.classOf(codePoint);
+			StateCache.State<Void> nextState = state.transitions[classId];
+			if (nextState == null)
+			{
+				final int[] nextProgramCounters = union(
+						this.nfa.step(state.programCounters, this.classes.representative(classId)),
+						startStep(classId));
+				nextState = generation.add(state, classId, nextProgramCounters);
+				if (nextState == null)
+				{
+					if (generation.isThrashing(codePoints))
+					{
+						return UNDECIDED;
+					}
+					generation = this.states.reset(generation);
+					codePoints = 0;
+					nextState = generation.intern(nextProgramCounters);
+				}
+			}
+			state = nextState;
+			if (state.accepting)
+			{
+				generation.addCodePoints(codePoints);
+				return position;
+			}
+			if (state.dead)
+			{
+				restart[0] = position;
+				if (position >= stopAt)
+				{
+					generation.addCodePoints(codePoints);
+					return -1;
+				}
+			}
+		}
+		generation.addCodePoints(codePoints);
+		restart[0] = end;
+		return -1;
+	}
+
+	private int[] startStep(final int classId)
+	{
+		int[] startStep = this.startSteps[classId];
+		if (startStep == null)
+		{
+			startStep = this.nfa.step(this.start, this.classes.representative(classId));
+			this.startSteps[classId] = startStep;
+		}
+		return startStep;
+	}
+
+	// Merges two sorted sets of program counters; stepping their union is the union of their steps.
+	private static final int[] union(final int[] first, final int[] second)
+	{
+		final int[] union = new int[first.length + second.length];
+		int i = 0;
+		int j = 0;
+		int size = 0;
+		while (i < first.length && j < second.length)
+		{
+			if (first[i] < second[j])
+			{
+				union[size++] = first[i++];
+			}
+			else if (first[i] > second[j])
+			{
+				union[size++] = second[j++];
+			}
+			else
+			{
+				union[size++] = first[i++];
+				j++;
+			}
+		}
+		while (i < first.length)
+		{
+			union[size++] = first[i++];
+		}
+		while (j < second.length)
+		{
+			union[size++] = second[j++];
+		}
+		return size == union.length ? union : Arrays.copyOf(union, size);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+public final class SparseSet
+{
+	private final int[] dense;
+
+	private final int[] sparse;
+
+	private int size;
+
+	public SparseSet(final int capacity)
+	{
+		this.dense = new int[capacity];
+		this.sparse = new int[capacity];
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+	public int get(final int index)
+	{
+		return this.dense[index];
+	}
+
+	public boolean contains(final int value)
+	{
+		final int index = this.sparse[value];
+		return index < this.size && this.dense[index] == value;
+	}
+
+	public boolean add(final int value)
+	{
+		if (contains(value))
+		{
+			return false;
+		}
+		this.sparse[value] = this.size;
+		this.dense[this.size++] = value;
+		return true;
+	}
+
+	public void clear()
+	{
+		this.size = 0;
+	}
+}
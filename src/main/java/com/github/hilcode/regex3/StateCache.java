@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import com.google.common.collect.Maps;
+
+// The states of a lazy DFA: sets of program counters of an NFA, built on demand and shared between threads. At most
+// maxStates are kept; a full cache starts over with a new generation, unless it is thrashing, in which case the caller
+// is better off without it. Each state carries data computed from its program counters, such as which patterns it
+// accepts.
+public final class StateCache<DATA>
+{
+	// A cache that fills up before it has served this many code points per state is thrashing.
+	public static final int MIN_CODE_POINTS_PER_STATE = 10;
+
+	public static final class State<DATA>
+	{
+		public final int[] programCounters;
+
+		public final boolean accepting;
+
+		public final boolean dead;
+
+		public final DATA data;
+
+		// Indexed by code point class. Racing writers store equivalent states, so no locking is needed.
+		public final State<DATA>[] transitions;
+
+		private final int hashCode;
+
+		@SuppressWarnings("unchecked")
+		public State(final Nfa nfa, final int[] programCounters, final DATA data, final int classCount)
+		{
+			this.programCounters = programCounters;
+			this.accepting = nfa.isAccepting(programCounters);
+			this.dead = nfa.isDead(programCounters);
+			this.data = data;
+			this.transitions = new State[classCount];
+			this.hashCode = Arrays.hashCode(programCounters);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object object)
+		{
+			if (this == object)
+			{
+				return true;
+			}
+			if (object == null || getClass() != object.getClass())
+			{
+				return false;
+			}
+			final State<?> other = (State<?>) object;
+			return Arrays.equals(this.programCounters, other.programCounters);
+		}
+	}
+
+	// The states built since the cache last started over.
+	public final class Generation
+	{
+		private final ConcurrentMap<State<DATA>, State<DATA>> states = Maps.newConcurrentMap();
+
+		private final AtomicLong codePoints = new AtomicLong();
+
+		public final State<DATA> initial;
+
+		public Generation()
+		{
+			this.initial = intern(StateCache.this.initialProgramCounters);
+		}
+
+		public State<DATA> intern(final int[] programCounters)
+		{
+			final State<DATA> state = new State<>(
+					StateCache.this.nfa,
+					programCounters,
+					StateCache.this.data.apply(programCounters),
+					StateCache.this.classCount);
+			final State<DATA> existingState = this.states.putIfAbsent(state, state);
+			return existingState == null ? state : existingState;
+		}
+
+		// Returns the state the program counters form and records it as the transition of the state on the class, or
+		// null when this generation is full.
+		public State<DATA> add(final State<DATA> state, final int classId, final int[] nextProgramCounters)
+		{
+			if (this.states.size() >= StateCache.this.maxStates)
+			{
+				return null;
+			}
+			final State<DATA> nextState = intern(nextProgramCounters);
+			state.transitions[classId] = nextState;
+			return nextState;
+		}
+
+		// Whether this full generation served too few code points to be worth starting over, counting the ones the
+		// caller has not added yet.
+		public boolean isThrashing(final long codePoints)
+		{
+			return this.codePoints.get() + codePoints < (long) MIN_CODE_POINTS_PER_STATE * StateCache.this.maxStates;
+		}
+
+		public void addCodePoints(final long codePoints)
+		{
+			this.codePoints.addAndGet(codePoints);
+		}
+	}
+
+	private final Nfa nfa;
+
+	private final int[] initialProgramCounters;
+
+	private final Function<int[], DATA> data;
+
+	private final int classCount;
+
+	private final int maxStates;
+
+	private final AtomicReference<Generation> generation;
+
+	public StateCache(
+			final Nfa nfa,
+			final int[] initialProgramCounters,
+			final Function<int[], DATA> data,
+			final int classCount,
+			final int maxStates)
+	{
+		this.nfa = nfa;
+		this.initialProgramCounters = initialProgramCounters;
+		this.data = data;
+		this.classCount = classCount;
+		this.maxStates = maxStates;
+		this.generation = new AtomicReference<>(new Generation());
+	}
+
+	public Generation get()
+	{
+		return this.generation.get();
+	}
+
+	// Starts a new generation, unless another thread already replaced the full one, and returns the current one.
+	public Generation reset(final Generation fullGeneration)
+	{
+		final Generation newGeneration = new Generation();
+		return this.generation.compareAndSet(fullGeneration, newGeneration) ? newGeneration : this.generation.get();
+	}
+
+	public int getStateCount()
+	{
+		return this.generation.get().states.size();
+	}
+
+	public int getMaxStates()
+	{
+		return this.maxStates;
+	}
+}
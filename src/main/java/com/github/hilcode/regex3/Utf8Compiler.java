@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2017 H.C. Wijbenga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.hilcode.regex3;
+
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+// Lowers a code point program into one that matches the UTF-8 encoding of its input one byte at a time.
+public final class Utf8Compiler
+{
+	private static final int[] MAX_CODE_POINTS = { 0x7F, 0x7FF, 0xFFFF, Character.MAX_CODE_POINT };
+
+	private static final int NO_BYTE = 0x100;
+
+	public static final ImmutableList<Instruction> compile(final ImmutableList<Instruction> program)
+	{
+		final List<List<Instruction>> blocks = Lists.newArrayListWithCapacity(program.size());
+		final int[] programCounters = new int[program.size() + 1];
+		for (int pc = 0; pc < program.size(); pc++)
+		{
+			final Instruction instruction = program.get(pc);
+			final List<Instruction> block;
+			switch (instruction.type)
+			{
+				case SINGLE:
+				{
+					final Instruction.Single single = instruction.cast();
+					block = lower(CodePoints.include(single.codePoint).build());
+					break;
+				}
+				case RANGE:
+				{
+					final Instruction.Range range = instruction.cast();
+					block = lower(range.codePoints);
+					break;
+				}
+				case REPEAT:
+				{
+					final Instruction.Repeat repeat = instruction.cast();
+					block = lower(repeat);
+					break;
+				}
+				default:
+				{
+					block = ImmutableList.of(instruction);
+					break;
+				}
+			}
+			blocks.add(block);
+			programCounters[pc + 1] = programCounters[pc] + block.size();
+		}
+		final ImmutableList.Builder<Instruction> byteProgram = ImmutableList.builder();
+		for (int pc = 0; pc < program.size(); pc++)
+		{
+			final Instruction instruction = program.get(pc);
+			switch (instruction.type)
+			{
+				case FORK:
+				{
+					final Instruction.Fork fork = instruction.cast();
+					byteProgram.add(new Instruction.Fork(programCounters[pc + fork.offset] - programCounters[pc]));
+					break;
+				}
+				case JUMP:
+				{
+					final Instruction.Jump jump = instruction.cast();
+					byteProgram.add(new Instruction.Jump(programCounters[pc + jump.offset] - programCounters[pc]));
+					break;
+				}
+				default:
+				{
+					byteProgram.addAll(blocks.get(pc));
+					break;
+				}
+			}
+		}
+		return byteProgram.build();
+	}
+
+	// ASCII code points are single bytes, so their REPEAT stays as it is; any other REPEAT is copied max times, as long
+	// as that takes at most Regex.MAX_REPEATED_INSTRUCTIONS instructions.
+	private static final List<Instruction> lower(final Instruction.Repeat repeat)
+	{
+		if (repeat.codePoints.upperBound(repeat.codePoints.rangeCount() - 1) <= MAX_CODE_POINTS[0])
+		{
+			return ImmutableList.<Instruction> of(repeat);
+		}
+		final List<Instruction> body = lower(repeat.codePoints);
+		Regex.checkRepeatedSize(body.size(), repeat.max);
+		final List<Instruction> block = Lists.newArrayList();
+		for (int i = 0; i < repeat.min; i++)
+		{
+			block.addAll(body);
+		}
+		for (int i = repeat.min; i < repeat.max; i++)
+		{
+			block.add(new Instruction.Fork((repeat.max - i) * (body.size() + 1)));
+			block.addAll(body);
+		}
+		return block;
+	}
+
+	// Emits the byte sequences as a prefix tree of alternatives whose leaves all fall through past the block.
+	private static final List<Instruction> lower(final CodePoints codePoints)
+	{
+		final Node root = new Node(-1, -1);
+		final int[] sequence = new int[8];
+		for (int range = 0; range < codePoints.rangeCount(); range++)
+		{
+			final int lowerBound = codePoints.lowerBound(range);
+			final int upperBound = codePoints.upperBound(range);
+			if (lowerBound < Character.MIN_SURROGATE)
+			{
+				addSequences(root, sequence, lowerBound, Math.min(upperBound, Character.MIN_SURROGATE - 1));
+			}
+			if (upperBound > Character.MAX_SURROGATE)
+			{
+				addSequences(root, sequence, Math.max(lowerBound, Character.MAX_SURROGATE + 1), upperBound);
+			}
+		}
+		if (root.children.isEmpty())
+		{
+			// Surrogates have no UTF-8 encoding, so a class of only surrogates matches nothing: no byte is above 0xFF.
+			return ImmutableList.<Instruction> of(new Instruction.Single(CodePoint.of(NO_BYTE)));
+		}
+		final List<Instruction> block = Lists.newArrayList();
+		final List<Integer> jumps = Lists.newArrayList();
+		emit(root.children, block, jumps);
+		for (final Integer jump : jumps)
+		{
+			final int pc = jump.intValue();
+			block.set(pc, new Instruction.Jump(block.size() - pc));
+		}
+		return block;
+	}
+
+	private static final void emit(final List<Node> alternatives, final List<Instruction> block, final List<Integer> jumps)
+	{
+		for (int i = 0; i < alternatives.size(); i++)
+		{
+			final boolean last = i == alternatives.size() - 1;
+			final int fork = block.size();
+			if (!last)
+			{
+				block.add(null);
+			}
+			final Node node = alternatives.get(i);
+			block.add(node.lowerByte == node.upperByte
+					? new Instruction.Single(CodePoint.of(node.lowerByte))
+					: new Instruction.Range(CodePoints.include((char) node.lowerByte, (char) node.upperByte).build()));
+			emit(node.children, block, jumps);
+			if (!last)
+			{
+				jumps.add(Integer.valueOf(block.size()));
+				block.add(null);
+				block.set(fork, new Instruction.Fork(block.size() - fork));
+			}
+		}
+	}
+
+	private static final void addSequences(final Node root, final int[] sequence, final int lowerBound, final int upperBound)
+	{
+		int start = lowerBound;
+		int end = upperBound;
+		final int[] pending = new int[64];
+		int pendingSize = 0;
+		while (true)
+		{
+			boolean split = false;
+			for (int i = 0; i < MAX_CODE_POINTS.length - 1 && !split; i++)
+			{
+				if (start <= MAX_CODE_POINTS[i] && MAX_CODE_POINTS[i] < end)
+				{
+					pending[pendingSize++] = MAX_CODE_POINTS[i] + 1;
+					pending[pendingSize++] = end;
+					end = MAX_CODE_POINTS[i];
+					split = true;
+				}
+			}
+			for (int i = 1; i < 4 && !split && end > 0x7F; i++)
+			{
+				final int mask = (1 << 6 * i) - 1;
+				if ((start & ~mask) != (end & ~mask))
+				{
+					if ((start & mask) != 0)
+					{
+						pending[pendingSize++] = (start | mask) + 1;
+						pending[pendingSize++] = end;
+						end = start | mask;
+						split = true;
+					}
+					else if ((end & mask) != mask)
+					{
+						pending[pendingSize++] = end & ~mask;
+						pending[pendingSize++] = end;
+						end = (end & ~mask) - 1;
+						split = true;
+					}
+				}
+			}
+			if (split)
+			{
+				continue;
+			}
+			final int length = encode(start, sequence, 0);
+			encode(end, sequence, 4);
+			Node node = root;
+			for (int i = 0; i < length; i++)
+			{
+				node = node.child(sequence[i], sequence[4 + i]);
+			}
+			if (pendingSize == 0)
+			{
+				return;
+			}
+			end = pending[--pendingSize];
+			start = pending[--pendingSize];
+		}
+	}
+
+	private static final int encode(final int codePoint, final int[] bytes, final int offset)
+	{
+		if (codePoint <= 0x7F)
+		{
+			bytes[offset] = codePoint;
+			return 1;
+		}
+		if (codePoint <= 0x7FF)
+		{
+			bytes[offset] = 0xC0 | codePoint >>> 6;
+			bytes[offset + 1] = 0x80 | codePoint & 0x3F;
+			return 2;
+		}
+		if (codePoint <= 0xFFFF)
+		{
+			bytes[offset] = 0xE0 | codePoint >>> 12;
+			bytes[offset + 1] = 0x80 | codePoint >>> 6 & 0x3F;
+			bytes[offset + 2] = 0x80 | codePoint & 0x3F;
+			return 3;
+		}
+		bytes[offset] = 0xF0 | codePoint >>> 18;
+		bytes[offset + 1] = 0x80 | codePoint >>> 12 & 0x3F;
+		bytes[offset + 2] = 0x80 | codePoint >>> 6 & 0x3F;
+		bytes[offset + 3] = 0x80 | codePoint & 0x3F;
+		return 4;
+	}
+
+	private static final class Node
+	{
+		public final int lowerByte;
+
+		public final int upperByte;
+
+		public final List<Node> children = Lists.newArrayList();
+
+		public Node(final int lowerByte, final int upperByte)
+		{
+			this.lowerByte = lowerByte;
+			this.upperByte = upperByte;
+		}
+
+		// Sequences arrive in ascending order, so a shared prefix can only be the most recent child.
+		public Node child(final int lowerByte, final int upperByte)
+		{
+			if (!this.children.isEmpty())
+			{
+				final Node last = this.children.get(this.children.size() - 1);
+				if (last.lowerByte == lowerByte && last.upperByte == upperByte)
+				{
+					return last;
+				}
+			}
+			final Node node = new Node(lowerByte, upperByte);
+			this.children.add(node);
+			return node;
+		}
+	}
+
+	private Utf8Compiler()
+	{
+		// Empty.
+	}
+}